@@ -16,17 +16,34 @@ import org.scijava.plugin.Plugin;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
 
 // import tracking from local package
 import ch.epfl.bio410.utils.utils;
+import ch.epfl.bio410.utils.ErrorReport;
+import ch.epfl.bio410.utils.ImagePrefetcher;
+import ch.epfl.bio410.utils.ImageSource;
+import ch.epfl.bio410.utils.InputDiscovery;
+import ch.epfl.bio410.utils.ResultWriter;
+import ch.epfl.bio410.utils.RunManifest;
 import ch.epfl.bio410.utils.TrackingConfig;
-import ch.epfl.bio410.tracking.Tracking;
+import ch.epfl.bio410.tracking.ImageJobRunner;
+import ch.epfl.bio410.tracking.MotilityClassifier;
+import ch.epfl.bio410.tracking.MotilitySummary;
+import ch.epfl.bio410.tracking.TrackingException;
+import ch.epfl.bio410.tracking.TrackingPipeline;
 
 import javax.imageio.ImageIO;
 
@@ -36,7 +53,7 @@ public class SpermMotility implements Command {
 
 	private final String path = Paths.get(System.getProperty("user.home")).toString();
 	private TrackingConfig config;
-	private String[] fileList = new String[]{};
+	private List<ImageSource> sources = new ArrayList<>();
 	// Detection parameters
 	private final double radius = 3.5; 	// Detection parameters, radius of the object in um
 	private final double threshold = 0.357;  // Detection parameters, quality threshold
@@ -57,12 +74,37 @@ public class SpermMotility implements Command {
 
 		GenericDialog dlg = new GenericDialog("Sperm motility");
 		dlg.addMessage("Hey! Welcome to the sperm motility plugin!\n" +
-				"Select the directory containing the tiff images to process.\n" +
+				"Select the directory containing the images to process.\n" +
 				"You can also modify the tracking parameters. \n" +
 				"This version of the plugin does not allow splitting or merging of tracks.");
 
 		dlg.setInsets(20,0,0);
 		dlg.addDirectoryField("Path to the image", path);
+		dlg.addFileField("Config file (optional, replaces the parameters below)", "");
+		dlg.addStringField("File patterns", InputDiscovery.DEFAULT_PATTERNS, 25);
+		dlg.setInsets(0,90,0);
+		dlg.addCheckbox("Search subfolders", false);
+
+		dlg.setInsets(20,0,0);
+		dlg.addMessage("Analysis region (leave width and height to 0 for the whole frame):");
+		dlg.addNumericField("Region x (pxl)", 0, 0);
+		dlg.addNumericField("Region y (pxl)", 0, 0);
+		dlg.addNumericField("Region width (pxl)", 0, 0);
+		dlg.addNumericField("Region height (pxl)", 0, 0);
+		dlg.addFileField("Region ROI file (optional)", "");
+		dlg.setInsets(0,90,0);
+		dlg.addCheckbox("Automatic crop to signal", false);
+		dlg.addNumericField("First analysed frame", 1, 0);
+		dlg.addNumericField("Max analysed frames (0 = all)", 0, 0);
+		dlg.addNumericField("Max analysed duration (s, 0 = all)", 0, 1);
+
+		dlg.setInsets(20,0,0);
+		dlg.addMessage("Triage (quick check of a few frames before the analysis):");
+		dlg.setInsets(0,90,0);
+		dlg.addCheckbox("Skip unusable videos", false);
+		dlg.addNumericField("Min spots per frame", 1, 1);
+		dlg.addNumericField("Max spots per frame (0 = no limit)", 0, 0);
+		dlg.addNumericField("Min sharpness (0 = no check)", 0, 4);
 
 		dlg.setInsets(20,0,0);
 		dlg.addMessage("Preprocessing:");
@@ -75,12 +117,16 @@ public class SpermMotility implements Command {
 
 		dlg.setInsets(0,90,0);
 		dlg.addCheckbox("Apply median filter", medianFilter);
+		dlg.setInsets(0,90,0);
+		dlg.addCheckbox("Fast detection on downsampled frames", false);
 
 		dlg.setInsets(15,0,0);
 		dlg.addMessage("Tracking:");
 		dlg.addNumericField("Max linking distance (µm)", maxLinkDistance, 2);
 		dlg.addNumericField("Max gap closing distance (µm)", maxGapDistance, 2);
 		dlg.addNumericField("Max frame gap", maxFrameGap, 0);
+		dlg.setInsets(0,90,0);
+		dlg.addCheckbox("Correct drift and flow before linking", false);
 		dlg.addNumericField("Track duration filter (min)", durationFilter, 2);
 		dlg.addNumericField("Minimum mean speed (um/s)", minMeanSpeed, 2);
 		dlg.addNumericField("Minimum straight line speed (um/s)", minStraightSpeed, 2);
@@ -96,9 +142,18 @@ public class SpermMotility implements Command {
 		dlg.setInsets(0,10,0);
 		dlg.addCheckbox("Skip already analysed images", false);
 
+		dlg.setInsets(0,10,0);
+		dlg.addCheckbox("Only analyse new or changed images (incremental)", false);
+
 		dlg.setInsets(0,10,0);
 		dlg.addCheckbox("Save image with tracking overlay", false);
 
+		dlg.setInsets(15,0,0);
+		dlg.addMessage("Batch:");
+		dlg.addNumericField("Prefetched images", 1, 0);
+		dlg.addNumericField("Prefetch memory budget (MB, 0 = auto)", 0, 0);
+		dlg.addNumericField("Timeout per image (s, 0 = none)", 0, 0);
+
 		dlg.showDialog();
 
 		if (dlg.wasCanceled()) return;
@@ -111,31 +166,48 @@ public class SpermMotility implements Command {
 			IJ.log("No directory selected. Exiting.");
 			return;
 		}
-		// Get the list of .tiff files in the directory
-		File dir = new File(inputDir);
-		FilenameFilter filter = (dir1, name) -> name.toLowerCase().endsWith(".tiff");
-		fileList = dir.list(filter);
-		// If no .tiff files are found, exit
-		if (fileList == null || fileList.length == 0) {
-			IJ.log("No .tiff files found in the directory.");
-			return;
-		}
+		String configFile = dlg.getNextString();
+		String filePatterns = dlg.getNextString();
+		boolean searchSubfolders = dlg.getNextBoolean();
+
+		// Get the analysis region parameters
+		int roiX = (int) dlg.getNextNumber();
+		int roiY = (int) dlg.getNextNumber();
+		int roiWidth = (int) dlg.getNextNumber();
+		int roiHeight = (int) dlg.getNextNumber();
+		String roiPath = dlg.getNextString();
+		boolean autoCrop = dlg.getNextBoolean();
+		int firstFrame = (int) dlg.getNextNumber();
+		int maxFrames = (int) dlg.getNextNumber();
+		double maxDuration = dlg.getNextNumber();
+
+		// Get the triage parameters
+		boolean triageEnabled = dlg.getNextBoolean();
+		double triageMinSpots = dlg.getNextNumber();
+		double triageMaxSpots = dlg.getNextNumber();
+		double triageMinSharpness = dlg.getNextNumber();
 
 		// Get all the tracking parameters
 		int subtractionRadius = (int) dlg.getNextNumber();
 		double detectionRadius = dlg.getNextNumber();
 		double detectionThreshold = dlg.getNextNumber();
 		boolean applyMedianFilter = dlg.getNextBoolean();
+		boolean pyramidDetection = dlg.getNextBoolean();
 		double linkingMaxDistance = dlg.getNextNumber();
 		double gapClosingMaxDistance = dlg.getNextNumber();
 		int frameGap = (int) dlg.getNextNumber();
+		boolean driftCorrection = dlg.getNextBoolean();
 		double trackDurationMin = dlg.getNextNumber();
 		double minMeanSpeed = dlg.getNextNumber();
 		double minStraightSpeed = dlg.getNextNumber();
 		double minLinearity = dlg.getNextNumber();
 		boolean stopBetweenImages = dlg.getNextBoolean();
 		boolean skipAnalysedImages = dlg.getNextBoolean();
+		boolean incremental = dlg.getNextBoolean();
 		boolean saveImageWithOverlay = dlg.getNextBoolean();
+		int prefetchDepth = (int) dlg.getNextNumber();
+		int prefetchMemoryMB = (int) dlg.getNextNumber();
+		int imageTimeout = (int) dlg.getNextNumber();
 
 
 		// Set the config if needed (use existing if set or no config available)
@@ -152,10 +224,84 @@ public class SpermMotility implements Command {
 				minStraightSpeed,
 				minLinearity
 		);
+		this.config.detector_pyramid = pyramidDetection;
+		this.config.drift_correction = driftCorrection;
+		this.config.roi_x = roiX;
+		this.config.roi_y = roiY;
+		this.config.roi_width = roiWidth;
+		this.config.roi_height = roiHeight;
+		this.config.roi_path = roiPath;
+		this.config.auto_crop = autoCrop;
+		this.config.first_frame = firstFrame;
+		this.config.max_frames = maxFrames;
+		this.config.max_duration = maxDuration;
+		this.config.triage_enabled = triageEnabled;
+		this.config.triage_min_spots = triageMinSpots;
+		this.config.triage_max_spots = triageMaxSpots;
+		this.config.triage_min_sharpness = triageMinSharpness;
+		this.config.input_patterns = filePatterns;
+		this.config.input_recursive = searchSubfolders;
+		this.config.prefetch_depth = prefetchDepth;
+		this.config.prefetch_memory_mb = prefetchMemoryMB;
+		this.config.image_timeout = imageTimeout;
+
+		// Parameters saved in a config file replace the ones of the dialog
+		if (configFile != null && !configFile.isEmpty()) {
+			try {
+				this.config = TrackingConfig.load(new File(configFile));
+				IJ.log("Parameters loaded from " + configFile);
+			} catch (IOException | IllegalArgumentException e) {
+				IJ.error("Sperm motility", "Could not load the config file " + configFile + ":\n" + e.getMessage());
+				return;
+			}
+		}
+
+		runBatch(inputDir, config, stopBetweenImages, skipAnalysedImages, saveImageWithOverlay, incremental);
+	}
+
+	/**
+	 * Analyses all the images of a folder, see runBatch(String, TrackingConfig, boolean, boolean, boolean, boolean).
+	 */
+	public void runBatch(String inputDir, TrackingConfig config, boolean stopBetweenImages, boolean skipAnalysedImages, boolean saveImageWithOverlay) {
+		runBatch(inputDir, config, stopBetweenImages, skipAnalysedImages, saveImageWithOverlay, false);
+	}
+
+	/**
+	 * Analyses all the images of a folder with the given config, without any dialog
+	 * unless stopBetweenImages is set.
+	 * @param inputDir Folder containing the images, searched with the input patterns of the config.
+	 * @param config Parameters of the analysis.
+	 * @param stopBetweenImages Wait for the user after each image.
+	 * @param skipAnalysedImages Skip the images that already have a tracks CSV file.
+	 * @param saveImageWithOverlay Save a screenshot of the tracks overlaid on each image.
+	 * @param incremental Only analyse the images that are new, changed, analysed with another config or failed
+	 *                    since the last run (see RunManifest).
+	 */
+	public void runBatch(String inputDir, TrackingConfig config, boolean stopBetweenImages, boolean skipAnalysedImages, boolean saveImageWithOverlay,
+						 boolean incremental) {
+		this.config = config;
+		try {
+			config.validate();
+		} catch (IllegalArgumentException e) {
+			IJ.log(e.getMessage());
+			return;
+		}
+
+		// Get the list of images (one per series) matching the patterns
+		try {
+			sources = InputDiscovery.discover(Paths.get(inputDir), config.input_patterns, config.input_recursive);
+		} catch (IOException e) {
+			IJ.log("Could not list the directory " + inputDir + ": " + e.getMessage());
+			return;
+		}
+		// If no images are found, exit
+		if (sources.isEmpty()) {
+			IJ.log("No files matching " + config.input_patterns + " found in the directory.");
+			return;
+		}
 
 		// TRACKING
-		Tracking tracker = new Tracking();
-		tracker.setConfig(config);
+		TrackingPipeline pipeline = new TrackingPipeline(config);
 
 
 		// Prepare output directory
@@ -172,105 +318,241 @@ public class SpermMotility implements Command {
 			}
 		}
 
-		IJ.run("Overlay Options...", "stroke=none width=20 fill=none set"); //FIXME
+		// Keep the parameters next to the results, to rerun the analysis unattended
+		try {
+			config.save(new File(resultsFolder, "config.properties"));
+			IJ.log("Config " + config.fingerprint() + " saved to the results directory.");
+		} catch (IOException e) {
+			IJ.log("Could not save the config to the results directory: " + e.getMessage());
+		}
 
+		// Inputs, config and results of the images analysed so far in this folder
+		RunManifest manifest;
+		try {
+			manifest = new RunManifest(resultsFolder);
+		} catch (IOException e) {
+			IJ.log("Could not read the run manifest of the results directory: " + e.getMessage());
+			return;
+		}
+		String fingerprint = config.fingerprint();
 
-		// start for loop processing and tracking each image in loop one at a time
-		for (String fileName : fileList) {
-			String imagePath = Paths.get(inputDir, fileName).toString();
-			String imageNameWithoutExtension = fileName.substring(0, fileName.lastIndexOf('.'));
+		if (!GraphicsEnvironment.isHeadless()) {
+			IJ.run("Overlay Options...", "stroke=none width=20 fill=none set"); //FIXME
+		}
 
-			IJ.log((java.util.Arrays.asList(fileList).indexOf(fileName) + 1) + "/" + fileList.length);
 
-			if(skipAnalysedImages && utils.FileExists(inputDir, "tracks_" + imageNameWithoutExtension + ".csv")){
-				IJ.log("Skipping already analysed image: " + fileName);
+		// Leave out the images already analysed, so they are not prefetched
+		List<ImageSource> toProcess = new ArrayList<>();
+		List<String> causes = new ArrayList<>();
+		for (ImageSource source : sources) {
+			if(skipAnalysedImages && utils.FileExists(inputDir, "tracks_" + source.getName() + ".csv")){
+				IJ.log("Skipping already analysed image: " + source);
 				continue;
 			}
-
-			IJ.log("Processing image: " + fileName);
-
-			// Open the image
-			ImagePlus imp = IJ.openImage(imagePath);
-			imp.show();
-			// get number of frames of image
-			int nFrames = imp.getNFrames();
-			IJ.run(imp, "Subtract Background...", "stack rolling="+subtractionRadius);
-			IJ.run(imp, "Enhance Contrast", "saturated=0.35");
-			IJ.run(imp, "Cyan", "");
-
-			// Run tracking on the image
-			Model model = tracker.runTracking(imp);
-			FeatureModel featureModel = model.getFeatureModel();
-			//IJ.run("Tile");
-			//see https://imagej.net/plugins/trackmate/scripting/scripting#display-spot-edge-and-track-numerical-features-after-tracking for ways to get the features
-
-			File csvSpotsPath = Paths.get(resultsPath, "spots_" + imageNameWithoutExtension + ".csv").toFile();
-			File csvTracksPath = Paths.get(resultsPath, "tracks_" + imageNameWithoutExtension + ".csv").toFile();
-			try {
-				tracker.saveFeaturesToCSV(model, csvSpotsPath, csvTracksPath, imagePath);
-				tracker.cleanTracksCSV(csvTracksPath);
-				IJ.log("Results saved.");
-			} catch (IOException e) {
-				IJ.error("Error saving results", "Could not save results to CSV files.\n" +
-						"The file being written is being used in another process.\n" +
-						"Close it and restart.");
-				throw new RuntimeException(e);
+			String cause = manifest.reasonToAnalyse(source, fingerprint);
+			if (incremental && cause == null) {
+				IJ.log("Skipping image unchanged since the last run: " + source);
+				continue;
 			}
+			toProcess.add(source);
+			causes.add(cause != null ? cause : "RERUN");
+		}
+		if (incremental) {
+			IJ.log(toProcess.size() + " new or changed image(s) out of " + sources.size() + ".");
+		}
 
-//			// Save the image with the tracking result as avi with overlay
-			if (saveImageWithOverlay) {
-				String outputPath = Paths.get(resultsPath, imageNameWithoutExtension + ".png").toString();
-				IJ.log("Saving image with tracking result to: " + outputPath);
-
-				//			imp.setAntialiasRendering(false);
-				//			// make overlay on imp thicker
-				//			//imp.getOverlay().setStrokeWidth(20.0);
-				//			IJ.run(imp, "AVI... ", "compression=None frame=1 save=[" + outputPath + "]");
-				//			//IJ.saveAs(imp, "Tiff", "C:/Users/mathi/Downloads/mri-stack.tif");
+		// start for loop processing and tracking each image in loop one at a time,
+		// while the next images are read in the background
+		ErrorReport errors = new ErrorReport(resultsFolder);
+		List<PendingEntry> pending = new ArrayList<>();
+		// Images are restricted to the analysed region on the prefetch thread, the copy counts in the prefetch budget
+		try (ImagePrefetcher prefetcher = new ImagePrefetcher(toProcess, config.prefetch_depth, config.prefetch_memory_mb * 1024L * 1024L,
+				(opened, reservation) -> TrackingPipeline.prepare(opened, config, reservation));
+			 ResultWriter writer = new ResultWriter(config.writer_threads, config.writer_queue_size, config.writer_max_attempts);
+			 ImageJobRunner runner = new ImageJobRunner(config.image_timeout)) {
+			for (int i = 0; i < toProcess.size(); i++) {
+				ImageSource source = toProcess.get(i);
+				String imageNameWithoutExtension = source.getName();
+				recordExported(manifest, pending, false);
+
+				IJ.log((i + 1) + "/" + toProcess.size());
+				IJ.log("Processing image: " + source);
+
+				// Get the image (opened lazily for formats read through Bio-Formats)
+				ImagePlus imp;
+				try {
+					imp = prefetcher.take(i);
+				} catch (IOException e) {
+					errors.add(imageNameWithoutExtension, TrackingException.Reason.IO.name(), "Could not open image: " + e.getMessage());
+					recordFailure(manifest, source, fingerprint, TrackingException.Reason.IO.name(), causes.get(i));
+					continue;
+				}
 
+				// Preprocess and track the image in isolation, a failure only skips this image
+				Model model;
 				try {
+					TrackingPipeline current = pipeline;
+					model = runner.run(imageNameWithoutExtension, () -> current.run(imp), current::cancel);
+				} catch (TrackingException e) {
+					errors.add(imageNameWithoutExtension, e.getReason().name(), e.getMessage());
+					recordFailure(manifest, source, fingerprint, e.getReason().name(), causes.get(i));
+					if (e.getReason() == TrackingException.Reason.TIMEOUT) {
+						// the abandoned analysis may still use the pipeline, start from a fresh one
+						pipeline = new TrackingPipeline(config);
+					}
+					if (!GraphicsEnvironment.isHeadless()) {
+						IJ.run("Close All");
+					}
+					prefetcher.release(i);
+					continue;
+				}
+				//IJ.run("Tile");
+				//see https://imagej.net/plugins/trackmate/scripting/scripting#display-spot-edge-and-track-numerical-features-after-tracking for ways to get the features
+
+				// Queue the export, it is written in the background while the next image is tracked
+				List<MotilityClassifier.TrackGrade> grades = pipeline.classify(model);
+				MotilitySummary summary = MotilitySummary.fromModel(model, config);
+				summary.addGrades(grades);
+				Properties entry = RunManifest.describe(source, fingerprint);
+				summary.toProperties(entry);
+				pending.add(new PendingEntry(entry, causes.get(i), pipeline.export(model, grades, source, resultsFolder, writer)));
+
+	//			// Save the image with the tracking result as avi with overlay
+				if (saveImageWithOverlay) {
+					String outputPath = Paths.get(resultsPath, imageNameWithoutExtension + ".png").toString();
+					IJ.log("Saving image with tracking result to: " + outputPath);
+
+					//			imp.setAntialiasRendering(false);
+					//			// make overlay on imp thicker
+					//			//imp.getOverlay().setStrokeWidth(20.0);
+					//			IJ.run(imp, "AVI... ", "compression=None frame=1 save=[" + outputPath + "]");
+					//			//IJ.saveAs(imp, "Tiff", "C:/Users/mathi/Downloads/mri-stack.tif");
+
 					// Get the current Fiji window
 					ImagePlus imp_tracked = WindowManager.getCurrentImage();
-					if (imp_tracked == null) {
-						System.out.println("No active Fiji window found.");
-						return;
+					if (imp_tracked == null || imp_tracked.getWindow() == null) {
+						IJ.log("No active Fiji window found, the overlay of " + imageNameWithoutExtension + " is not saved.");
+					} else {
+						try {
+							// Get the bounds of the Fiji window
+							Rectangle windowBounds = imp_tracked.getWindow().getBounds();
+
+							// Capture the screen area of the Fiji window (must be done while the window is shown)
+							Robot robot = new Robot();
+							BufferedImage screenshot = robot.createScreenCapture(windowBounds);
+
+							// Save the screenshot to the specified path in the background
+							writer.submit(imageNameWithoutExtension + " (overlay)", Collections.singletonList(new File(outputPath)), tempFiles -> {
+								if (!ImageIO.write(screenshot, "png", tempFiles.get(0))) {
+									throw new IOException("No PNG writer available.");
+								}
+							});
+						} catch (AWTException e) {
+							IJ.log("Could not capture the overlay of " + imageNameWithoutExtension + ": " + e.getMessage());
+						}
 					}
-					// Get the bounds of the Fiji window
-					Rectangle windowBounds = imp_tracked.getWindow().getBounds();
+				}
 
-					// Capture the screen area of the Fiji window
-					Robot robot = new Robot();
-					BufferedImage screenshot = robot.createScreenCapture(windowBounds);
+				// Look at tiles
+				if (stopBetweenImages) {
+					new WaitForUserDialog("Tracking check.\n", "Check tracking results.").show();
 
-					// Save the screenshot to the specified path
-					File outputFile = new File(outputPath);
-					ImageIO.write(screenshot, "png", outputFile);
+					GenericDialog dialog = new GenericDialog("Tracking done");
+					dialog.addMessage("Press OK to continue to the next image.");
+					dialog.setCancelLabel("Cancel");
+					dialog.setOKLabel("OK");
+					dialog.showDialog();
 
-					System.out.println("Screenshot saved to: " + outputPath);
-				} catch (Exception e) {
-					e.printStackTrace();
+					if (dialog.wasCanceled()) {
+						IJ.log("User canceled the operation or closed the dialog. Exiting plugin.");
+						break;
+					}
 				}
-			}
 
-			// Look at tiles
-			if (stopBetweenImages) {
-				new WaitForUserDialog("Tracking check.\n", "Check tracking results.").show();
+				// Close the image
+				if (!GraphicsEnvironment.isHeadless()) {
+					IJ.run("Close All");
+				}
+				prefetcher.release(i);
+				IJ.log("Finished processing image: " + source + "\n\n");
+			}
+			writer.close(); // wait for the last results before reporting
+			recordExported(manifest, pending, true);
+			for (Map.Entry<String, String> failure : writer.getFailures().entrySet()) {
+				errors.add(failure.getKey(), TrackingException.Reason.IO.name(), "Results not saved: " + failure.getValue());
+			}
+		}
+		errors.logSummary();
 
-				GenericDialog dialog = new GenericDialog("Tracking done");
-				dialog.addMessage("Press OK to continue to the next image.");
-				dialog.setCancelLabel("Cancel");
-				dialog.setOKLabel("OK");
-				dialog.showDialog();
+		// Update the summary of the folder from the entries of the images
+		List<String> resultKeys = Arrays.asList(MotilitySummary.csvHeader().split(","));
+		try {
+			for (String removed : manifest.removeMissing(sources)) {
+				IJ.log("Image removed from the folder since the last run: " + removed);
+			}
+			File summaryFile = manifest.writeSummary(resultKeys);
+			File changesFile = manifest.writeChanges(resultKeys);
+			IJ.log("Summary of the folder updated: " + summaryFile);
+			if (changesFile != null) {
+				IJ.log(manifest.countChanges() + " image(s) analysed or removed, see " + changesFile);
+			}
+		} catch (IOException e) {
+			IJ.log("Could not update the run manifest: " + e.getMessage());
+		}
+	}
 
-				if (dialog.wasCanceled()) {
-					IJ.log("User canceled the operation or closed the dialog. Exiting plugin.");
-					return;
-				}
+	/**
+	 * Records in the manifest the images whose export is finished, as DONE or FAILED,
+	 * so that the entries of the images already saved are kept if the batch stops before its end.
+	 * @param wait Wait for all the pending exports, at the end of the batch.
+	 */
+	private static void recordExported(RunManifest manifest, List<PendingEntry> pending, boolean wait) {
+		for (Iterator<PendingEntry> it = pending.iterator(); it.hasNext(); ) {
+			PendingEntry entry = it.next();
+			if (!wait && !entry.export.isDone()) {
+				continue;
+			}
+			boolean saved;
+			try {
+				saved = entry.export.get();
+			} catch (InterruptedException | ExecutionException e) {
+				saved = false;
+			}
+			entry.entry.setProperty("STATUS", saved ? "DONE" : "FAILED");
+			if (!saved) {
+				entry.entry.setProperty("REASON", TrackingException.Reason.IO.name());
 			}
+			try {
+				manifest.record(entry.entry, entry.cause);
+			} catch (IOException e) {
+				IJ.log("Could not record " + entry.entry.getProperty("IMAGE") + " in the run manifest: " + e.getMessage());
+			}
+			it.remove();
+		}
+	}
+
+	/** Results of an image waiting for their export, recorded in the manifest once saved. */
+	private static class PendingEntry {
+		final Properties entry;
+		final String cause;
+		final Future<Boolean> export;
+
+		PendingEntry(Properties entry, String cause, Future<Boolean> export) {
+			this.entry = entry;
+			this.cause = cause;
+			this.export = export;
+		}
+	}
 
-			// Close the image
-			IJ.run("Close All");
-			IJ.log("Finished processing image: " + fileName + "\n\n");
+	/** Records an image that could not be analysed, so that the next incremental run retries it. */
+	private static void recordFailure(RunManifest manifest, ImageSource source, String fingerprint, String reason, String cause) {
+		Properties entry = RunManifest.describe(source, fingerprint);
+		entry.setProperty("STATUS", "FAILED");
+		entry.setProperty("REASON", reason);
+		try {
+			manifest.record(entry, cause);
+		} catch (IOException e) {
+			IJ.log("Could not record " + source.getName() + " in the run manifest: " + e.getMessage());
 		}
 	}
 
@@ -0,0 +1,45 @@
+package ch.epfl.bio410;
+
+import ch.epfl.bio410.utils.TrackingConfig;
+import ij.IJ;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unattended version of the plugin: analyses a folder with the parameters of a config file, without any dialog.
+ * It runs headless, e.g.:
+ * ImageJ-linux64 --headless --run "Sperm motility batch" "inputFolder='/data/day1',configFile='/data/config.properties'"
+ * The config file can be a properties or JSON file, e.g. the config.properties saved in the results folder by a previous run.
+ * With incremental=true, a daily rerun on a growing folder only analyses the new or changed images.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>FRT>Sperm motility batch", headless = true)
+public class SpermMotilityBatch implements Command {
+
+	@Parameter(label = "Input folder", style = "directory")
+	private File inputFolder;
+
+	@Parameter(label = "Config file", style = "open")
+	private File configFile;
+
+	@Parameter(label = "Skip already analysed images", required = false)
+	private boolean skipAnalysedImages = false;
+
+	@Parameter(label = "Only analyse new or changed images (incremental)", required = false)
+	private boolean incremental = false;
+
+	public void run() {
+		TrackingConfig config;
+		try {
+			config = TrackingConfig.load(configFile);
+		} catch (IOException | IllegalArgumentException e) {
+			IJ.log("ERROR -- Could not load the config file " + configFile + ": " + e.getMessage());
+			return;
+		}
+		IJ.log("Parameters loaded from " + configFile + " (config " + config.fingerprint() + ")");
+		new SpermMotility().runBatch(inputFolder.getAbsolutePath(), config, false, skipAnalysedImages, false, incremental);
+	}
+}
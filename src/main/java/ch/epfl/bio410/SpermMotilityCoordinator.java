@@ -0,0 +1,173 @@
+package ch.epfl.bio410;
+
+import ch.epfl.bio410.tracking.MotilitySummary;
+import ch.epfl.bio410.utils.ImageSource;
+import ch.epfl.bio410.utils.InputDiscovery;
+import ch.epfl.bio410.utils.WorkQueue;
+import ij.IJ;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Coordinator of the distributed batch mode (see SpermMotilityWorker).
+ * - Enqueue: lists the images of a folder and adds them to the shared queue, with the config to use.
+ * - Progress: shows how many images are waiting, being processed, done and failed, and which node holds which image.
+ * - Merge: merges the manifest entries written by the workers into summary.csv and summary_by_node.csv.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>FRT>Sperm motility coordinator", headless = true)
+public class SpermMotilityCoordinator implements Command {
+
+	public static final String ENQUEUE = "Enqueue folder";
+	public static final String PROGRESS = "Show progress";
+	public static final String MERGE = "Merge summaries";
+
+	@Parameter(label = "Action", choices = {ENQUEUE, PROGRESS, MERGE})
+	private String action = ENQUEUE;
+
+	@Parameter(label = "Queue folder", style = "directory")
+	private File queueFolder;
+
+	@Parameter(label = "Input folder (enqueue)", style = "directory", required = false)
+	private File inputFolder;
+
+	@Parameter(label = "File patterns (enqueue)", required = false)
+	private String patterns = InputDiscovery.DEFAULT_PATTERNS;
+
+	@Parameter(label = "Search subfolders (enqueue)", required = false)
+	private boolean recursive = false;
+
+	@Parameter(label = "Config file (enqueue, optional)", style = "open", required = false)
+	private File configFile;
+
+	@Parameter(label = "Lease duration (s)", min = "10")
+	private int leaseSeconds = 600;
+
+	public void run() {
+		WorkQueue queue = new WorkQueue(queueFolder.toPath());
+		try {
+			queue.init();
+			switch (action) {
+				case ENQUEUE:
+					enqueue(queue);
+					break;
+				case PROGRESS:
+					progress(queue);
+					break;
+				case MERGE:
+					merge(queue);
+					break;
+				default:
+					IJ.log("Unknown action: " + action);
+			}
+		} catch (IOException e) {
+			IJ.log("ERROR -- " + action + " failed: " + e.getMessage());
+		}
+	}
+
+	private void enqueue(WorkQueue queue) throws IOException {
+		if (inputFolder == null || !inputFolder.isDirectory()) {
+			IJ.log("No input folder selected.");
+			return;
+		}
+		if (configFile != null && configFile.isFile()) {
+			Files.copy(configFile.toPath(), queue.getRoot().resolve(WorkQueue.CONFIG_FILE), StandardCopyOption.REPLACE_EXISTING);
+			IJ.log("Workers will use the config " + configFile);
+		}
+		File resultsFolder = new File(inputFolder, InputDiscovery.RESULTS_FOLDER);
+		List<ImageSource> sources = InputDiscovery.discover(inputFolder.toPath(), patterns, recursive);
+		int added = 0;
+		for (ImageSource source : sources) {
+			Properties job = new Properties();
+			job.setProperty("PATH", source.getPath().toAbsolutePath().toString());
+			job.setProperty("SERIES", String.valueOf(source.getSeries()));
+			job.setProperty("SERIES_COUNT", String.valueOf(source.getSeriesCount()));
+			job.setProperty("NAME", source.getName());
+			job.setProperty("RESULTS", resultsFolder.getAbsolutePath());
+			// prefix with the input folder, so several folders of a study can share a queue
+			if (queue.enqueue(inputFolder.getName() + "_" + source.getName(), job)) {
+				added++;
+			}
+		}
+		IJ.log(added + " image(s) added to the queue, " + (sources.size() - added) + " already queued or done.");
+	}
+
+	private void progress(WorkQueue queue) throws IOException {
+		int requeued = queue.requeueExpired(leaseSeconds * 1000L);
+		if (requeued > 0) {
+			IJ.log(requeued + " image(s) of unresponsive nodes put back in the queue.");
+		}
+		int todo = queue.count(WorkQueue.TODO);
+		int claimed = queue.count(WorkQueue.CLAIMED);
+		int done = queue.count(WorkQueue.DONE);
+		int failed = queue.count(WorkQueue.FAILED);
+		int total = todo + claimed + done + failed;
+		IJ.log("----- Queue " + queue.getRoot());
+		IJ.log("- Waiting : " + todo);
+		IJ.log("- Processing : " + claimed);
+		IJ.log("- Done : " + done);
+		IJ.log("- Failed : " + failed);
+		IJ.log("- Progress : " + (total > 0 ? String.format("%.1f", 100.0 * (done + failed) / total) : "0") + " %");
+		for (Path file : queue.listClaimed()) {
+			String name = file.getFileName().toString();
+			IJ.log("  " + name.substring(name.lastIndexOf('@') + 1, name.length() - ".job".length())
+					+ " is processing " + name.substring(0, name.lastIndexOf('@')));
+		}
+	}
+
+	private void merge(WorkQueue queue) throws IOException {
+		List<Properties> done = queue.readManifests(WorkQueue.DONE);
+		List<Properties> failed = queue.readManifests(WorkQueue.FAILED);
+		Map<String, MotilitySummary> byNode = new TreeMap<>();
+		Map<String, Integer> imagesByNode = new TreeMap<>();
+		Map<String, Double> durationByNode = new TreeMap<>();
+
+		File summaryFile = queue.getRoot().resolve("summary.csv").toFile();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(summaryFile))) {
+			writer.write("IMAGE,PATH,SERIES,NODE,STATUS,REASON,DURATION_S," + MotilitySummary.csvHeader() + "\n");
+			for (List<Properties> manifests : Arrays.asList(done, failed)) {
+				for (Properties manifest : manifests) {
+					MotilitySummary summary = MotilitySummary.fromProperties(manifest);
+					writer.write(manifest.getProperty("NAME") + ",\"" + manifest.getProperty("PATH") + "\","
+							+ manifest.getProperty("SERIES", "0") + "," + manifest.getProperty("NODE") + ","
+							+ manifest.getProperty("STATUS") + "," + manifest.getProperty("REASON", "") + ","
+							+ manifest.getProperty("DURATION_S", "") + "," + summary.toCsvRow() + "\n");
+					if (manifests == done) {
+						String node = manifest.getProperty("NODE");
+						MotilitySummary total = byNode.computeIfAbsent(node, n -> new MotilitySummary());
+						total.nSpots += summary.nSpots;
+						total.nTracks += summary.nTracks;
+						total.nMotile += summary.nMotile;
+						imagesByNode.merge(node, 1, Integer::sum);
+						durationByNode.merge(node, Double.parseDouble(manifest.getProperty("DURATION_S", "0")), Double::sum);
+					}
+				}
+			}
+		}
+
+		File nodeFile = queue.getRoot().resolve("summary_by_node.csv").toFile();
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(nodeFile))) {
+			writer.write("NODE,IMAGES,TOTAL_DURATION_S,NUMBER_SPOTS,NUMBER_TRACKS,NUMBER_MOTILE,PERCENT_MOTILITY\n");
+			for (Map.Entry<String, MotilitySummary> entry : byNode.entrySet()) {
+				MotilitySummary total = entry.getValue();
+				double percent = total.nTracks > 0 ? 100.0 * total.nMotile / total.nTracks : 0;
+				writer.write(entry.getKey() + "," + imagesByNode.get(entry.getKey()) + "," + durationByNode.get(entry.getKey()) + ","
+						+ total.nSpots + "," + total.nTracks + "," + total.nMotile + "," + percent + "\n");
+			}
+		}
+		IJ.log("Merged " + done.size() + " done and " + failed.size() + " failed image(s) into " + summaryFile + " and " + nodeFile);
+	}
+}
@@ -0,0 +1,139 @@
+package ch.epfl.bio410;
+
+import ch.epfl.bio410.tracking.StreamingTracker;
+import ch.epfl.bio410.utils.FrameFolderWatcher;
+import ch.epfl.bio410.utils.InputDiscovery;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Live mode of the plugin, for quality control at the microscope.
+ * It watches the folder where the acquisition software writes the frames of a video (one frame or a short stack per file),
+ * tracks them as they arrive (see StreamingTracker) and logs the spots, the active tracks and a rolling motility percentage.
+ * It stops when no new file arrived for a while, and writes the finished tracks in results/live_tracks.csv.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>FRT>Sperm motility live", headless = true)
+public class SpermMotilityLive implements Command {
+
+	@Parameter(label = "Acquisition folder", style = "directory")
+	private File watchFolder;
+
+	@Parameter(label = "Config file (optional)", style = "open", required = false)
+	private File configFile;
+
+	@Parameter(label = "File patterns")
+	private String patterns = "*.tif, *.tiff";
+
+	@Parameter(label = "Pixel size (µm, 0 = from the images)", min = "0")
+	private double pixelSize = 0;
+
+	@Parameter(label = "Frame interval (s, 0 = from the images)", min = "0")
+	private double frameInterval = 0;
+
+	@Parameter(label = "Stop after no new frame for (s)", min = "1")
+	private int idleSeconds = 30;
+
+	@Parameter(label = "Log every (frames)", min = "1")
+	private int reportEvery = 10;
+
+	@Parameter(label = "Rolling motility window (frames)", min = "1")
+	private int rollingWindow = 100;
+
+	@Parameter(label = "Max frames waiting", min = "1")
+	private int queueCapacity = 20;
+
+	public void run() {
+		TrackingConfig config = new TrackingConfig();
+		if (configFile != null && configFile.isFile()) {
+			try {
+				config = TrackingConfig.load(configFile);
+			} catch (IOException | IllegalArgumentException e) {
+				IJ.log("ERROR -- Could not load the config file " + configFile + ": " + e.getMessage());
+				return;
+			}
+		}
+
+		StreamingTracker tracker = null;
+		int frames = 0;
+		try (FrameFolderWatcher watcher = new FrameFolderWatcher(watchFolder.toPath(), patterns)) {
+			IJ.log("Waiting for frames in " + watchFolder);
+			Path file;
+			while ((file = watcher.next(idleSeconds * 1000L)) != null) {
+				ImagePlus imp = IJ.openImage(file.toString());
+				if (imp == null) {
+					IJ.log("Could not open " + file + ", skipped.");
+					continue;
+				}
+				if (tracker == null) {
+					tracker = createTracker(config, imp);
+				}
+				for (int t = 1; t <= imp.getStackSize(); t += imp.getNChannels()) {
+					tracker.push(imp.getStack().getProcessor(t));
+					frames++;
+				}
+				imp.close();
+			}
+			IJ.log("No new frame for " + idleSeconds + " s, stopping.");
+			if (tracker != null) {
+				writeTracks(tracker.finish());
+			}
+		} catch (IOException e) {
+			IJ.log("ERROR -- Cannot watch the folder " + watchFolder + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Live tracking interrupted.");
+		} catch (IllegalStateException e) {
+			IJ.log("ERROR -- " + e.getMessage() + ": " + e.getCause());
+		}
+		IJ.log("Live tracking finished, " + frames + " frame(s) tracked.");
+	}
+
+	private StreamingTracker createTracker(TrackingConfig config, ImagePlus first) {
+		double size = pixelSize > 0 ? pixelSize : first.getCalibration().pixelWidth;
+		double interval = frameInterval > 0 ? frameInterval : first.getCalibration().frameInterval;
+		if (!(interval > 0)) {
+			interval = 1;
+			IJ.log("No frame interval found, speeds are given per frame.");
+		}
+		IJ.log("Pixel size " + size + " µm, frame interval " + interval + " s");
+		return new StreamingTracker(config, size, interval, queueCapacity, rollingWindow, new StreamingTracker.Listener() {
+			@Override
+			public void onFrame(StreamingTracker.FrameUpdate update) {
+				if (update.frame % reportEvery == 0) {
+					IJ.log(String.format("Frame %d : %d spots, %d active tracks, motility %.1f %% (%d tracks), latency %d ms",
+							update.frame, update.nSpots, update.activeTracks.size(),
+							update.rollingMotility, update.rollingTracks, update.latencyMillis));
+				}
+			}
+		});
+	}
+
+	private void writeTracks(List<StreamingTracker.TrackKinematics> tracks) throws IOException {
+		File resultsFolder = new File(watchFolder, InputDiscovery.RESULTS_FOLDER);
+		resultsFolder.mkdirs();
+		File file = new File(resultsFolder, "live_tracks.csv");
+		int motile = 0;
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("TRACK_ID,NUMBER_SPOTS,FIRST_FRAME,LAST_FRAME,TRACK_DURATION,TOTAL_DISTANCE_TRAVELED,TRACK_MEAN_SPEED,MEAN_STRAIGHT_LINE_SPEED,LINEARITY_OF_FORWARD_PROGRESSION,MOTILE\n");
+			for (StreamingTracker.TrackKinematics track : tracks) {
+				writer.write(track.trackId + "," + track.nSpots + "," + track.firstFrame + "," + track.lastFrame + ","
+						+ track.duration + "," + track.totalDistance + "," + track.meanSpeed + ","
+						+ track.straightLineSpeed + "," + track.linearity + "," + (track.motile ? 1 : 0) + "\n");
+				motile += track.motile ? 1 : 0;
+			}
+		}
+		IJ.log(tracks.size() + " tracks, motility " + (tracks.isEmpty() ? 0 : String.format("%.1f", 100.0 * motile / tracks.size()))
+				+ " %. Tracks saved in " + file);
+	}
+}
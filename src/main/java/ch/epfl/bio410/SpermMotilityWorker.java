@@ -0,0 +1,199 @@
+package ch.epfl.bio410;
+
+import ch.epfl.bio410.tracking.ImageJobRunner;
+import ch.epfl.bio410.tracking.MotilityClassifier;
+import ch.epfl.bio410.tracking.MotilitySummary;
+import ch.epfl.bio410.tracking.TrackingException;
+import ch.epfl.bio410.tracking.TrackingPipeline;
+import ch.epfl.bio410.utils.ImageSource;
+import ch.epfl.bio410.utils.ResultWriter;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.WorkQueue;
+import fiji.plugin.trackmate.Model;
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Worker mode of the plugin, to spread a study over several nodes sharing a filesystem.
+ * The worker claims the images queued by the coordinator in a shared queue folder, analyses them
+ * with the same pipeline as the plugin, writes their results and a manifest entry per image,
+ * and stops when the queue is empty.
+ * It runs headless, e.g.:
+ * ImageJ-linux64 --headless --run "Sperm motility worker" "queueFolder='/shared/study/queue'"
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>FRT>Sperm motility worker", headless = true)
+public class SpermMotilityWorker implements Command {
+
+	@Parameter(label = "Queue folder", style = "directory")
+	private File queueFolder;
+
+	@Parameter(label = "Node name (empty = automatic)", required = false)
+	private String node = "";
+
+	@Parameter(label = "Lease duration (s)", min = "10")
+	private int leaseSeconds = 600;
+
+	@Parameter(label = "Wait for new images (s, 0 = stop when the queue is empty)", min = "0")
+	private int idleSeconds = 0;
+
+	public void run() {
+		WorkQueue queue = new WorkQueue(queueFolder.toPath());
+		String nodeName = node == null || node.isEmpty() ? WorkQueue.defaultNodeName() : node;
+		try {
+			queue.init();
+		} catch (IOException e) {
+			IJ.log("ERROR -- Cannot use the queue folder " + queueFolder + ": " + e.getMessage());
+			return;
+		}
+
+		// Use the config stored in the queue by the coordinator, the defaults otherwise
+		File configFile = queueFolder.toPath().resolve(WorkQueue.CONFIG_FILE).toFile();
+		TrackingConfig config = new TrackingConfig();
+		if (configFile.exists()) {
+			try {
+				config = TrackingConfig.load(configFile);
+			} catch (IOException | IllegalArgumentException e) {
+				IJ.log("ERROR -- Could not load the config of the queue " + configFile + ": " + e.getMessage());
+				return;
+			}
+		}
+		TrackingPipeline pipeline = new TrackingPipeline(config);
+		IJ.log("Worker " + nodeName + " started on queue " + queueFolder);
+
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "SpermMotility-lease");
+			thread.setDaemon(true);
+			return thread;
+		});
+		int processed = 0;
+		try (ResultWriter writer = new ResultWriter(config.writer_threads, config.writer_queue_size, config.writer_max_attempts);
+			 ImageJobRunner runner = new ImageJobRunner(config.image_timeout)) {
+			long idleSince = System.currentTimeMillis();
+			while (true) {
+				queue.requeueExpired(leaseSeconds * 1000L);
+				WorkQueue.Claim claim = queue.claim(nodeName);
+				if (claim == null) {
+					if (System.currentTimeMillis() - idleSince >= idleSeconds * 1000L) {
+						break;
+					}
+					Thread.sleep(Math.min(5000L, idleSeconds * 1000L));
+					continue;
+				}
+
+				// Keep the lease while the image is analysed, and stop the analysis if another node took the item over
+				AtomicBoolean leaseLost = new AtomicBoolean();
+				ScheduledFuture<?> lease = heartbeat.scheduleAtFixedRate(() -> {
+					if (!queue.renewLease(claim.file) && leaseLost.compareAndSet(false, true)) {
+						runner.cancelCurrent("Lease of " + claim.id + " lost.");
+					}
+				}, leaseSeconds / 3, Math.max(1, leaseSeconds / 3), TimeUnit.SECONDS);
+				try {
+					pipeline = process(claim, queue, nodeName, config, pipeline, runner, writer, leaseLost);
+				} finally {
+					lease.cancel(false);
+				}
+				processed++;
+				idleSince = System.currentTimeMillis();
+			}
+		} catch (IOException e) {
+			IJ.log("ERROR -- Queue folder not accessible: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Worker interrupted.");
+		} finally {
+			heartbeat.shutdownNow();
+		}
+		IJ.log("Worker " + nodeName + " finished, " + processed + " image(s) processed.");
+	}
+
+	/**
+	 * Analyses a claimed image, waits for its results to be written and records its manifest entry.
+	 * If the lease of the item is lost (it was requeued and possibly claimed by another node),
+	 * neither its results nor its manifest entry are written: the node now holding it does.
+	 * @return The pipeline to use for the next image (a new one after a timeout or a lost lease).
+	 */
+	private TrackingPipeline process(WorkQueue.Claim claim, WorkQueue queue, String nodeName, TrackingConfig config,
+									 TrackingPipeline pipeline, ImageJobRunner runner, ResultWriter writer,
+									 AtomicBoolean leaseLost) throws IOException, InterruptedException {
+		Properties job = claim.job;
+		ImageSource source = new ImageSource(
+				Paths.get(job.getProperty("PATH")),
+				Integer.parseInt(job.getProperty("SERIES", "0")),
+				Integer.parseInt(job.getProperty("SERIES_COUNT", "1")),
+				job.getProperty("NAME"));
+		File resultsFolder = new File(job.getProperty("RESULTS"));
+		Files.createDirectories(resultsFolder.toPath());
+
+		Properties manifest = new Properties();
+		manifest.putAll(job);
+		manifest.setProperty("NODE", nodeName);
+		long start = System.currentTimeMillis();
+		manifest.setProperty("START", String.valueOf(start));
+		IJ.log("Processing image: " + source);
+
+		boolean success = false;
+		try {
+			ImagePlus imp = source.open();
+			TrackingPipeline current = pipeline;
+			Model model = runner.run(source.getName(), () -> current.run(imp), current::cancel);
+			if (leaseLost.get()) {
+				throw new TrackingException(TrackingException.Reason.CANCELLED, "Lease of " + claim.id + " lost.");
+			}
+			List<MotilityClassifier.TrackGrade> grades = pipeline.classify(model);
+			MotilitySummary summary = MotilitySummary.fromModel(model, config);
+			summary.addGrades(grades);
+			summary.toProperties(manifest);
+			success = pipeline.export(model, grades, source, resultsFolder, writer).get();
+			if (!success) {
+				manifest.setProperty("REASON", TrackingException.Reason.IO.name());
+				manifest.setProperty("MESSAGE", "Results not saved: " + writer.getFailures().get(source.getName()));
+			}
+		} catch (TrackingException e) {
+			manifest.setProperty("REASON", e.getReason().name());
+			manifest.setProperty("MESSAGE", String.valueOf(e.getMessage()));
+			if (e.getReason() == TrackingException.Reason.TIMEOUT) {
+				pipeline = new TrackingPipeline(config);
+			}
+		} catch (IOException | ExecutionException e) {
+			manifest.setProperty("REASON", TrackingException.Reason.IO.name());
+			manifest.setProperty("MESSAGE", String.valueOf(e.getMessage()));
+		} catch (RuntimeException e) {
+			TrackingException classified = TrackingException.classify(e);
+			manifest.setProperty("REASON", classified.getReason().name());
+			manifest.setProperty("MESSAGE", String.valueOf(classified.getMessage()));
+		} finally {
+			if (!GraphicsEnvironment.isHeadless()) {
+				IJ.run("Close All");
+			}
+		}
+
+		if (leaseLost.get() || !queue.renewLease(claim.file)) {
+			IJ.log("Lease lost on image: " + source + ", it is left to the node that claimed it again.\n");
+			return new TrackingPipeline(config);
+		}
+		long end = System.currentTimeMillis();
+		manifest.setProperty("END", String.valueOf(end));
+		manifest.setProperty("DURATION_S", String.valueOf((end - start) / 1000.0));
+		manifest.setProperty("STATUS", success ? "DONE" : "FAILED");
+		queue.complete(claim, success, manifest);
+		IJ.log((success ? "Finished" : "Failed") + " processing image: " + source + "\n");
+		return pipeline;
+	}
+}
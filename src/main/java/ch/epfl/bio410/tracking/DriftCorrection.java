@@ -0,0 +1,246 @@
+package ch.epfl.bio410.tracking;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class estimates and removes the global translation of the spots from one frame to the next,
+ * caused by the drift of the sample or by the flow of the fluid in the chamber.
+ * It runs between detection and linking: the spots of each frame are registered on the spots of the previous frame,
+ * and the translation is the median displacement of the matched spots, so that the cells swimming
+ * in all directions do not bias it.
+ * The spots are then moved back by the cumulated translation, so that linking only has to cover the
+ * swimming of the cells, and the speeds are relative to the fluid.
+ * Once the track features are computed, the spots are moved back to their position in the image (see restore()),
+ * and the corrected positions are kept as the CORRECTED_POSITION_X and CORRECTED_POSITION_Y spot features.
+ */
+public class DriftCorrection {
+
+    public static final String CORRECTED_POSITION_X = "CORRECTED_POSITION_X";
+    public static final String CORRECTED_POSITION_Y = "CORRECTED_POSITION_Y";
+
+    /** Minimum number of matched spots to estimate the translation between two frames. */
+    private static final int MIN_MATCHES = 3;
+
+    private DriftCorrection() {
+    }
+
+    /**
+     * Estimates the translation between consecutive frames.
+     * A first registration matches each spot to the nearest spot of the previous frame within the search distance,
+     * a second one matches the spots again once the previous frame is shifted by the first estimate, within the linking distance.
+     * The translation of a frame with too few matches is interpolated from the nearest estimated frames before and after it
+     * (the nearest one at the start and end of the video, 0 if no frame has enough matches).
+     * @param spots Visible spots after spot filtering.
+     * @param nFrames Number of frames.
+     * @param searchDistance Max translation between two frames, in µm.
+     * @param linkingDistance Max displacement of a cell relative to the fluid between two frames, in µm.
+     * @return For each frame, the translation {dx, dy} from the previous frame, in µm ({0, 0} for the first frame).
+     */
+    public static double[][] estimate(SpotCollection spots, int nFrames, double searchDistance, double linkingDistance) {
+        double[][] steps = new double[nFrames][2];
+        boolean[] estimated = new boolean[nFrames];
+        double[][] previous = positions(spots, 0);
+        for (int frame = 1; frame < nFrames; frame++) {
+            double[][] current = positions(spots, frame);
+            double[] first = medianDisplacement(previous, current, 0, 0, searchDistance);
+            if (first != null) {
+                double[] second = medianDisplacement(previous, current, first[0], first[1], linkingDistance);
+                steps[frame] = second != null ? second : first;
+                estimated[frame] = true;
+            }
+            previous = current;
+        }
+        interpolateMissing(steps, estimated);
+        return steps;
+    }
+
+    /** Fills the steps of the frames that were not estimated, linearly between the estimated frames around them. */
+    private static void interpolateMissing(double[][] steps, boolean[] estimated) {
+        int before = -1;
+        for (int frame = 1; frame < steps.length; frame++) {
+            if (estimated[frame]) {
+                before = frame;
+                continue;
+            }
+            int after = frame + 1;
+            while (after < steps.length && !estimated[after]) {
+                after++;
+            }
+            if (before < 0 && after >= steps.length) {
+                return; // nothing estimated, no correction
+            } else if (before < 0) {
+                steps[frame] = steps[after].clone();
+            } else if (after >= steps.length) {
+                steps[frame] = steps[before].clone();
+            } else {
+                double w = (double) (frame - before) / (after - before);
+                steps[frame][0] = steps[before][0] + w * (steps[after][0] - steps[before][0]);
+                steps[frame][1] = steps[before][1] + w * (steps[after][1] - steps[before][1]);
+            }
+        }
+    }
+
+    /**
+     * Moves the spots of each frame back by the translation cumulated since the first frame.
+     * @param spots Spots to move.
+     * @param steps Translations returned by estimate().
+     * @return The cumulated translation of each frame, {dx, dy} in µm.
+     */
+    public static double[][] apply(SpotCollection spots, double[][] steps) {
+        double[][] cumulated = new double[steps.length][2];
+        for (int frame = 0; frame < steps.length; frame++) {
+            if (frame > 0) {
+                cumulated[frame][0] = cumulated[frame - 1][0] + steps[frame][0];
+                cumulated[frame][1] = cumulated[frame - 1][1] + steps[frame][1];
+            }
+            for (Spot spot : spots.iterable(frame, false)) {
+                spot.putFeature(Spot.POSITION_X, spot.getFeature(Spot.POSITION_X) - cumulated[frame][0]);
+                spot.putFeature(Spot.POSITION_Y, spot.getFeature(Spot.POSITION_Y) - cumulated[frame][1]);
+            }
+        }
+        return cumulated;
+    }
+
+    /**
+     * Moves the spots back to their position in the image, after the tracks and their features are computed
+     * on the corrected positions, so that the overlay, the spots table and the spot index line up with the image.
+     * The corrected positions are kept as the CORRECTED_POSITION_X and CORRECTED_POSITION_Y features, declared in the model.
+     * @param model Model of the spots moved by apply().
+     * @param cumulated Cumulated translation returned by apply().
+     */
+    public static void restore(Model model, double[][] cumulated) {
+        SpotCollection spots = model.getSpots();
+        for (int frame = 0; frame < cumulated.length; frame++) {
+            for (Spot spot : spots.iterable(frame, false)) {
+                double x = spot.getFeature(Spot.POSITION_X);
+                double y = spot.getFeature(Spot.POSITION_Y);
+                spot.putFeature(CORRECTED_POSITION_X, x);
+                spot.putFeature(CORRECTED_POSITION_Y, y);
+                spot.putFeature(Spot.POSITION_X, x + cumulated[frame][0]);
+                spot.putFeature(Spot.POSITION_Y, y + cumulated[frame][1]);
+            }
+        }
+        List<String> features = Arrays.asList(CORRECTED_POSITION_X, CORRECTED_POSITION_Y);
+        Map<String, String> names = new HashMap<>();
+        names.put(CORRECTED_POSITION_X, "Drift corrected X");
+        names.put(CORRECTED_POSITION_Y, "Drift corrected Y");
+        Map<String, String> shortNames = new HashMap<>();
+        shortNames.put(CORRECTED_POSITION_X, "Corr. X");
+        shortNames.put(CORRECTED_POSITION_Y, "Corr. Y");
+        Map<String, Dimension> dimensions = new HashMap<>();
+        Map<String, Boolean> isInt = new HashMap<>();
+        for (String feature : features) {
+            dimensions.put(feature, Dimension.POSITION);
+            isInt.put(feature, false);
+        }
+        model.getFeatureModel().declareSpotFeatures(features, names, shortNames, dimensions, isInt);
+    }
+
+    private static double[][] positions(SpotCollection spots, int frame) {
+        List<double[]> positions = new ArrayList<>();
+        for (Spot spot : spots.iterable(frame, true)) {
+            positions.add(new double[] {spot.getDoublePosition(0), spot.getDoublePosition(1)});
+        }
+        return positions.toArray(new double[0][]);
+    }
+
+    /**
+     * Matches each spot of a frame to the nearest spot of the previous frame shifted by (shiftX, shiftY),
+     * and returns the median displacement from the previous frame, or null if there are too few matches.
+     * The previous frame is bucketed in a grid of cells of the search distance, so that only the neighbouring cells are searched.
+     */
+    private static double[] medianDisplacement(double[][] previous, double[][] current, double shiftX, double shiftY, double maxDistance) {
+        if (previous.length < MIN_MATCHES || current.length < MIN_MATCHES) {
+            return null;
+        }
+        Map<Long, List<double[]>> grid = new HashMap<>();
+        for (double[] p : previous) {
+            grid.computeIfAbsent(cell(p[0] + shiftX, p[1] + shiftY, maxDistance), key -> new ArrayList<>()).add(p);
+        }
+        double[] dx = new double[current.length];
+        double[] dy = new double[current.length];
+        int nMatches = 0;
+        for (double[] c : current) {
+            long cx = (long) Math.floor(c[0] / maxDistance);
+            long cy = (long) Math.floor(c[1] / maxDistance);
+            double[] nearest = null;
+            double nearestDistance = maxDistance * maxDistance;
+            for (long gy = cy - 1; gy <= cy + 1; gy++) {
+                for (long gx = cx - 1; gx <= cx + 1; gx++) {
+                    List<double[]> bucket = grid.get(key(gx, gy));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (double[] p : bucket) {
+                        double ex = c[0] - p[0] - shiftX;
+                        double ey = c[1] - p[1] - shiftY;
+                        double d = ex * ex + ey * ey;
+                        if (d <= nearestDistance) {
+                            nearestDistance = d;
+                            nearest = p;
+                        }
+                    }
+                }
+            }
+            if (nearest != null) {
+                dx[nMatches] = c[0] - nearest[0];
+                dy[nMatches] = c[1] - nearest[1];
+                nMatches++;
+            }
+        }
+        if (nMatches < MIN_MATCHES) {
+            return null;
+        }
+        return new double[] {median(dx, nMatches), median(dy, nMatches)};
+    }
+
+    private static long cell(double x, double y, double size) {
+        return key((long) Math.floor(x / size), (long) Math.floor(y / size));
+    }
+
+    private static long key(long gx, long gy) {
+        return (gx << 32) ^ (gy & 0xffffffffL);
+    }
+
+    private static double median(double[] values, int n) {
+        double[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+
+    /**
+     * Writes the drift of a video to a CSV file.
+     * @param cumulated Cumulated translation of each frame returned by apply().
+     * @param frameInterval Time between frames, in seconds.
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void saveToCSV(double[][] cumulated, double frameInterval, File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("FRAME,POSITION_T,DRIFT_X,DRIFT_Y,DRIFT_SPEED_X,DRIFT_SPEED_Y\n");
+            for (int frame = 0; frame < cumulated.length; frame++) {
+                double vx = 0;
+                double vy = 0;
+                if (frame > 0 && frameInterval > 0) {
+                    vx = (cumulated[frame][0] - cumulated[frame - 1][0]) / frameInterval;
+                    vy = (cumulated[frame][1] - cumulated[frame - 1][1]) / frameInterval;
+                }
+                writer.write(frame + "," + frame * frameInterval + "," + cumulated[frame][0] + "," + cumulated[frame][1]
+                        + "," + vx + "," + vy + "\n");
+            }
+        }
+    }
+}
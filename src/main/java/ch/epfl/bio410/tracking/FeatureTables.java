@@ -0,0 +1,127 @@
+package ch.epfl.bio410.tracking;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class writes the spots and tracks tables of a TrackMate model to CSV files, in the format of the TrackMate tables export:
+ * a row of feature keys, a row of names, a row of short names and a row of units, then one row per spot or track.
+ * The tables are written from the feature model only, without building the TrackMate table windows,
+ * so it works headless and on any thread (e.g. the threads of the ResultWriter).
+ */
+public class FeatureTables {
+
+    private FeatureTables() {
+    }
+
+    /**
+     * Writes the spots of the visible tracks, sorted by track and frame.
+     * @param model TrackMate model, after tracking.
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void saveSpots(Model model, File file) throws IOException {
+        FeatureModel fm = model.getFeatureModel();
+        Collection<String> features = fm.getSpotFeatures();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writeHeader(writer, new String[]{"LABEL", "ID", "TRACK_ID"}, new String[]{"Label", "Spot ID", "Track ID"},
+                    features, fm.getSpotFeatureNames(), fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), model);
+            Map<String, Boolean> isInt = fm.getSpotFeatureIsInt();
+            for (Integer trackID : new TreeSet<>(model.getTrackModel().trackIDs(true))) {
+                List<Spot> spots = new ArrayList<>(model.getTrackModel().trackSpots(trackID));
+                spots.sort(Comparator.comparingDouble(spot -> spot.getFeature(Spot.FRAME)));
+                for (Spot spot : spots) {
+                    StringBuilder row = new StringBuilder(quote(spot.getName()));
+                    row.append(',').append(spot.ID()).append(',').append(trackID);
+                    for (String feature : features) {
+                        row.append(',').append(format(spot.getFeature(feature), isInt.get(feature)));
+                    }
+                    writer.write(row + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the visible tracks, sorted by ID.
+     * @param model TrackMate model, after tracking and track filtering.
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void saveTracks(Model model, File file) throws IOException {
+        FeatureModel fm = model.getFeatureModel();
+        Collection<String> features = fm.getTrackFeatures();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writeHeader(writer, new String[]{"LABEL"}, new String[]{"Label"},
+                    features, fm.getTrackFeatureNames(), fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), model);
+            Map<String, Boolean> isInt = fm.getTrackFeatureIsInt();
+            for (Integer trackID : new TreeSet<>(model.getTrackModel().trackIDs(true))) {
+                StringBuilder row = new StringBuilder(quote(model.getTrackModel().name(trackID)));
+                for (String feature : features) {
+                    row.append(',').append(format(fm.getTrackFeature(trackID, feature), isInt.get(feature)));
+                }
+                writer.write(row + "\n");
+            }
+        }
+    }
+
+    /** Writes the four header rows: keys, names, short names and units. */
+    private static void writeHeader(BufferedWriter writer, String[] fixedKeys, String[] fixedNames, Collection<String> features,
+                                    Map<String, String> names, Map<String, String> shortNames, Map<String, Dimension> dimensions,
+                                    Model model) throws IOException {
+        StringBuilder keys = new StringBuilder();
+        StringBuilder nameRow = new StringBuilder();
+        StringBuilder shortNameRow = new StringBuilder();
+        StringBuilder units = new StringBuilder();
+        for (int i = 0; i < fixedKeys.length; i++) {
+            String separator = i == 0 ? "" : ",";
+            keys.append(separator).append(fixedKeys[i]);
+            nameRow.append(separator).append(quote(fixedNames[i]));
+            shortNameRow.append(separator).append(quote(fixedNames[i]));
+            units.append(separator);
+        }
+        for (String feature : features) {
+            keys.append(',').append(feature);
+            nameRow.append(',').append(quote(names.get(feature)));
+            shortNameRow.append(',').append(quote(shortNames.get(feature)));
+            Dimension dimension = dimensions.get(feature);
+            String unit = dimension == null ? "" : TMUtils.getUnitsFor(dimension, model.getSpaceUnits(), model.getTimeUnits());
+            units.append(',').append(unit == null || unit.isEmpty() ? "" : quote("(" + unit + ")"));
+        }
+        writer.write(keys + "\n" + nameRow + "\n" + shortNameRow + "\n" + units + "\n");
+    }
+
+    private static String format(Double value, Boolean isInt) {
+        if (value == null || value.isNaN()) {
+            return "";
+        }
+        if (isInt != null && isInt) {
+            return String.valueOf(Math.round(value));
+        }
+        return String.valueOf(value);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
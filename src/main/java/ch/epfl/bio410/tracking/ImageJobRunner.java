@@ -0,0 +1,119 @@
+package ch.epfl.bio410.tracking;
+
+import ij.IJ;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * This class runs the analysis of each image of a batch in isolation: on its own thread, with a timeout,
+ * and with every error turned into a classified TrackingException, so that one bad image never stops the batch.
+ * If an analysis times out and does not react to the cancellation, its thread is abandoned and
+ * the next images run on a new thread.
+ */
+public class ImageJobRunner implements AutoCloseable {
+
+    /** The analysis of one image. */
+    public interface Job<T> {
+        T run() throws Exception;
+    }
+
+    /** Time given to a cancelled analysis to stop before its thread is abandoned. */
+    private static final long CANCEL_GRACE_SECONDS = 10;
+
+    private final long timeoutSeconds;
+    private ExecutorService executor;
+    private volatile Future<?> current;
+    private volatile Consumer<String> currentOnCancel;
+
+    /**
+     * Constructor for ImageJobRunner.
+     * @param timeoutSeconds Max duration of the analysis of one image, in seconds (0 = no timeout).
+     */
+    public ImageJobRunner(long timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        this.executor = newExecutor();
+    }
+
+    private static ExecutorService newExecutor() {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "SpermMotility-analysis");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the analysis of one image and waits for its result.
+     * @param name Name of the image, for the log.
+     * @param job Analysis to run.
+     * @param onCancel Called with the reason when the analysis times out or is cancelled, to stop it cooperatively.
+     * @return The result of the analysis.
+     * @throws TrackingException If the analysis fails, times out or is cancelled.
+     */
+    public <T> T run(String name, Job<T> job, Consumer<String> onCancel) throws TrackingException {
+        Future<T> future = executor.submit(job::run);
+        currentOnCancel = onCancel;
+        current = future;
+        try {
+            return timeoutSeconds > 0 ? future.get(timeoutSeconds, TimeUnit.SECONDS) : future.get();
+        } catch (TimeoutException e) {
+            String reason = "Analysis of " + name + " took more than " + timeoutSeconds + " s.";
+            stop(future, onCancel, reason);
+            throw new TrackingException(TrackingException.Reason.TIMEOUT, reason, e);
+        } catch (InterruptedException e) {
+            stop(future, onCancel, "Batch interrupted.");
+            Thread.currentThread().interrupt();
+            throw TrackingException.classify(e);
+        } catch (ExecutionException e) {
+            throw TrackingException.classify(e.getCause());
+        } catch (CancellationException e) {
+            throw TrackingException.classify(e);
+        } finally {
+            current = null;
+            currentOnCancel = null;
+        }
+    }
+
+    /**
+     * Cancels the analysis currently running, if any, from another thread. It then fails with the CANCELLED reason.
+     * @param reason Reason of the cancellation, passed to the onCancel callback of the analysis.
+     */
+    public void cancelCurrent(String reason) {
+        Future<?> running = current;
+        Consumer<String> onCancel = currentOnCancel;
+        if (running != null) {
+            if (onCancel != null) {
+                onCancel.accept(reason);
+            }
+            running.cancel(true);
+        }
+    }
+
+    private void stop(Future<?> future, Consumer<String> onCancel, String reason) {
+        if (onCancel != null) {
+            onCancel.accept(reason);
+        }
+        future.cancel(true);
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(CANCEL_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                IJ.log("The analysis thread did not stop, it is abandoned.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = newExecutor();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
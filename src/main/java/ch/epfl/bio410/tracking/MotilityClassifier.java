@@ -0,0 +1,190 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.TrackingConfig;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * This class grades the tracks of a video from their coordinates, as a CASA system does.
+ * For each track it computes the kinematic parameters (VCL, VSL, VAP, LIN, STR, WOB, ALH), the WHO motility grade
+ * (progressive, non-progressive, immotile), hyperactivation (VCL, LIN and ALH criteria) and a confidence,
+ * lower for short tracks and tracks with gaps.
+ * The tracks of a video are graded in parallel.
+ */
+public class MotilityClassifier {
+
+    /** WHO motility grades. */
+    public enum Grade {
+        /** PR: moving actively, linearly or in a large circle. */
+        PROGRESSIVE,
+        /** NP: moving without progression. */
+        NON_PROGRESSIVE,
+        /** IM: not moving. */
+        IMMOTILE
+    }
+
+    /** Kinematics and grade of one track. Speeds in µm/s, distances in µm. */
+    public static class TrackGrade {
+        public int trackId;
+        public int nSpots;
+        public int nGaps;
+        public double duration;
+        /** Curvilinear velocity: along the detected positions. */
+        public double vcl;
+        /** Straight line velocity: from the first to the last position. */
+        public double vsl;
+        /** Average path velocity: along the path smoothed over vap_window positions. */
+        public double vap;
+        public double lin;
+        public double str;
+        public double wob;
+        /** Amplitude of lateral head displacement: twice the mean distance to the average path. */
+        public double alh;
+        public Grade grade;
+        public boolean hyperactivated;
+        /** Between 0 and 1. */
+        public double confidence;
+    }
+
+    private final TrackingConfig config;
+
+    public MotilityClassifier(TrackingConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Grades the visible tracks of a model.
+     * @param model TrackMate model, after tracking and track filtering.
+     * @return The grades, sorted by track ID.
+     */
+    public List<TrackGrade> classify(Model model) {
+        // Read the model on the calling thread, the grading itself only works on the copied coordinates
+        List<double[][]> tracks = new ArrayList<>();
+        List<Integer> trackIds = new ArrayList<>();
+        for (Integer trackId : model.getTrackModel().trackIDs(true)) {
+            List<Spot> spots = new ArrayList<>(model.getTrackModel().trackSpots(trackId));
+            spots.sort(Comparator.comparingDouble(spot -> spot.getFeature(Spot.POSITION_T)));
+            double[][] points = new double[spots.size()][];
+            for (int i = 0; i < points.length; i++) {
+                Spot spot = spots.get(i);
+                points[i] = new double[] {spot.getFeature(Spot.FRAME), spot.getDoublePosition(0), spot.getDoublePosition(1),
+                        spot.getFeature(Spot.POSITION_T)};
+            }
+            tracks.add(points);
+            trackIds.add(trackId);
+        }
+        return IntStream.range(0, tracks.size()).parallel()
+                .mapToObj(i -> grade(trackIds.get(i), tracks.get(i)))
+                .sorted(Comparator.comparingInt(grade -> grade.trackId))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Grades one track.
+     * @param trackId ID of the track.
+     * @param points Positions sorted by time: {frame, x, y, t}.
+     * @return The grade.
+     */
+    public TrackGrade grade(int trackId, double[][] points) {
+        TrackGrade g = new TrackGrade();
+        g.trackId = trackId;
+        g.nSpots = points.length;
+        int n = points.length;
+        if (n < 2) {
+            g.grade = Grade.IMMOTILE;
+            return g;
+        }
+        for (int i = 1; i < n; i++) {
+            if (points[i][0] - points[i - 1][0] > 1) {
+                g.nGaps++;
+            }
+        }
+        g.duration = points[n - 1][3] - points[0][3];
+        if (!(g.duration > 0)) {
+            g.grade = Grade.IMMOTILE;
+            return g;
+        }
+
+        double curvilinear = 0;
+        for (int i = 1; i < n; i++) {
+            curvilinear += distance(points[i - 1][1], points[i - 1][2], points[i][1], points[i][2]);
+        }
+        double straight = distance(points[0][1], points[0][2], points[n - 1][1], points[n - 1][2]);
+
+        // Average path: moving average of the positions
+        int half = Math.max(0, config.vap_window / 2);
+        double[][] average = new double[n][2];
+        for (int i = 0; i < n; i++) {
+            int from = Math.max(0, i - half);
+            int to = Math.min(n - 1, i + half);
+            for (int j = from; j <= to; j++) {
+                average[i][0] += points[j][1];
+                average[i][1] += points[j][2];
+            }
+            average[i][0] /= to - from + 1;
+            average[i][1] /= to - from + 1;
+        }
+        double averagePath = 0;
+        double lateral = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                averagePath += distance(average[i - 1][0], average[i - 1][1], average[i][0], average[i][1]);
+            }
+            lateral += distance(points[i][1], points[i][2], average[i][0], average[i][1]);
+        }
+
+        g.vcl = curvilinear / g.duration;
+        g.vsl = straight / g.duration;
+        g.vap = averagePath / g.duration;
+        g.lin = g.vcl > 0 ? g.vsl / g.vcl : 0;
+        g.str = g.vap > 0 ? g.vsl / g.vap : 0;
+        g.wob = g.vcl > 0 ? g.vap / g.vcl : 0;
+        g.alh = 2 * lateral / n;
+
+        if (g.vcl < config.who_immotile_max_vcl) {
+            g.grade = Grade.IMMOTILE;
+        } else if (g.vap >= config.who_progressive_min_vap && g.str >= config.who_progressive_min_str) {
+            g.grade = Grade.PROGRESSIVE;
+        } else {
+            g.grade = Grade.NON_PROGRESSIVE;
+        }
+        g.hyperactivated = g.vcl >= config.hyper_min_vcl && g.lin <= config.hyper_max_lin && g.alh >= config.hyper_min_alh;
+
+        // Gaps make the kinematics less reliable, and so do short tracks
+        double gapFactor = 1.0 - (double) g.nGaps / (n - 1);
+        double durationFactor = config.confidence_min_duration > 0 ? Math.min(1.0, g.duration / config.confidence_min_duration) : 1.0;
+        g.confidence = gapFactor * durationFactor;
+        return g;
+    }
+
+    private static double distance(double x1, double y1, double x2, double y2) {
+        return Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
+    }
+
+    /**
+     * Writes the grades of a video to a CSV file.
+     * @param grades Grades returned by classify().
+     * @param file File to write.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void saveToCSV(List<TrackGrade> grades, File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write("TRACK_ID,NUMBER_SPOTS,NUMBER_GAPS,TRACK_DURATION,VCL,VSL,VAP,LIN,STR,WOB,ALH,GRADE,HYPERACTIVATED,CONFIDENCE\n");
+            for (TrackGrade g : grades) {
+                writer.write(g.trackId + "," + g.nSpots + "," + g.nGaps + "," + g.duration + ","
+                        + g.vcl + "," + g.vsl + "," + g.vap + "," + g.lin + "," + g.str + "," + g.wob + "," + g.alh + ","
+                        + g.grade + "," + (g.hyperactivated ? 1 : 0) + "," + g.confidence + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.TrackingConfig;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * This class holds the per-image motility results: number of tracks, motile tracks, mean speed,
+ * and the number of tracks of each WHO grade (see MotilityClassifier).
+ * It is the content of the per-image manifest entries and of the batch summaries.
+ */
+public class MotilitySummary {
+
+    public int nSpots;
+    public int nTracks;
+    public int nMotile;
+    public double percentMotility;
+    public double meanSpeed;
+    public int nProgressive;
+    public int nNonProgressive;
+    public int nImmotile;
+    public int nHyperactivated;
+    public double percentProgressive;
+
+    /**
+     * Computes the summary of a tracked image.
+     * A track is motile if its mean speed is above the min_mean_speed of the config, as in the tracks CSV.
+     * @param model TrackMate model, after tracking and track filtering.
+     * @param config Config used for tracking.
+     * @return The summary.
+     */
+    public static MotilitySummary fromModel(Model model, TrackingConfig config) {
+        MotilitySummary summary = new MotilitySummary();
+        FeatureModel featureModel = model.getFeatureModel();
+        double speedSum = 0;
+        int nSpeeds = 0;
+        for (Integer trackID : model.getTrackModel().trackIDs(true)) {
+            summary.nTracks++;
+            Double speed = featureModel.getTrackFeature(trackID, "TRACK_MEAN_SPEED");
+            if (speed == null || speed.isNaN()) {
+                continue;
+            }
+            speedSum += speed;
+            nSpeeds++;
+            if (speed > config.min_mean_speed) {
+                summary.nMotile++;
+            }
+        }
+        summary.nSpots = model.getSpots().getNSpots(true);
+        summary.percentMotility = summary.nTracks > 0 ? 100.0 * summary.nMotile / summary.nTracks : 0;
+        summary.meanSpeed = nSpeeds > 0 ? speedSum / nSpeeds : 0;
+        return summary;
+    }
+
+    /** Counts the tracks of each grade. */
+    public void addGrades(List<MotilityClassifier.TrackGrade> grades) {
+        for (MotilityClassifier.TrackGrade grade : grades) {
+            switch (grade.grade) {
+                case PROGRESSIVE:
+                    nProgressive++;
+                    break;
+                case NON_PROGRESSIVE:
+                    nNonProgressive++;
+                    break;
+                default:
+                    nImmotile++;
+            }
+            if (grade.hyperactivated) {
+                nHyperactivated++;
+            }
+        }
+        percentProgressive = grades.isEmpty() ? 0 : 100.0 * nProgressive / grades.size();
+    }
+
+    /** Writes the summary into properties (keys in upper case, as in the CSV files). */
+    public void toProperties(Properties properties) {
+        properties.setProperty("NUMBER_SPOTS", String.valueOf(nSpots));
+        properties.setProperty("NUMBER_TRACKS", String.valueOf(nTracks));
+        properties.setProperty("NUMBER_MOTILE", String.valueOf(nMotile));
+        properties.setProperty("PERCENT_MOTILITY", String.valueOf(percentMotility));
+        properties.setProperty("MEAN_TRACK_SPEED", String.valueOf(meanSpeed));
+        properties.setProperty("NUMBER_PROGRESSIVE", String.valueOf(nProgressive));
+        properties.setProperty("NUMBER_NON_PROGRESSIVE", String.valueOf(nNonProgressive));
+        properties.setProperty("NUMBER_IMMOTILE", String.valueOf(nImmotile));
+        properties.setProperty("NUMBER_HYPERACTIVATED", String.valueOf(nHyperactivated));
+        properties.setProperty("PERCENT_PROGRESSIVE", String.valueOf(percentProgressive));
+    }
+
+    /** Reads a summary written by toProperties(). Missing values are 0. */
+    public static MotilitySummary fromProperties(Properties properties) {
+        MotilitySummary summary = new MotilitySummary();
+        summary.nSpots = Integer.parseInt(properties.getProperty("NUMBER_SPOTS", "0"));
+        summary.nTracks = Integer.parseInt(properties.getProperty("NUMBER_TRACKS", "0"));
+        summary.nMotile = Integer.parseInt(properties.getProperty("NUMBER_MOTILE", "0"));
+        summary.percentMotility = Double.parseDouble(properties.getProperty("PERCENT_MOTILITY", "0"));
+        summary.meanSpeed = Double.parseDouble(properties.getProperty("MEAN_TRACK_SPEED", "0"));
+        summary.nProgressive = Integer.parseInt(properties.getProperty("NUMBER_PROGRESSIVE", "0"));
+        summary.nNonProgressive = Integer.parseInt(properties.getProperty("NUMBER_NON_PROGRESSIVE", "0"));
+        summary.nImmotile = Integer.parseInt(properties.getProperty("NUMBER_IMMOTILE", "0"));
+        summary.nHyperactivated = Integer.parseInt(properties.getProperty("NUMBER_HYPERACTIVATED", "0"));
+        summary.percentProgressive = Double.parseDouble(properties.getProperty("PERCENT_PROGRESSIVE", "0"));
+        return summary;
+    }
+
+    /** CSV header matching toCsvRow(). */
+    public static String csvHeader() {
+        return "NUMBER_SPOTS,NUMBER_TRACKS,NUMBER_MOTILE,PERCENT_MOTILITY,MEAN_TRACK_SPEED,"
+                + "NUMBER_PROGRESSIVE,NUMBER_NON_PROGRESSIVE,NUMBER_IMMOTILE,NUMBER_HYPERACTIVATED,PERCENT_PROGRESSIVE";
+    }
+
+    public String toCsvRow() {
+        return nSpots + "," + nTracks + "," + nMotile + "," + percentMotility + "," + meanSpeed + ","
+                + nProgressive + "," + nNonProgressive + "," + nImmotile + "," + nHyperactivated + "," + percentProgressive;
+    }
+}
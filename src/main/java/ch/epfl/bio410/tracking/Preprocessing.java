@@ -0,0 +1,61 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.TrackingConfig;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ContrastEnhancer;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.*;
+
+/**
+ * This class preprocesses the frames before the detection. It is shared by the batch (TrackingPipeline)
+ * and the live tracking (StreamingTracker), so that both detect the same spots with the same config.
+ * It does what the Subtract Background... (rolling=radius), Enhance Contrast (saturated=0.35) and Cyan commands did,
+ * called directly: the ImageJ commands need the menus, which do not exist headless.
+ */
+final class Preprocessing {
+
+    /** Percentage of saturated pixels of the contrast stretch. */
+    private static final double SATURATED = 0.35;
+
+    private Preprocessing() {
+    }
+
+    /**
+     * Preprocesses one frame in place: rolling ball background subtraction (with presmoothing and corner correction,
+     * the defaults of the command) on the pixel type of the frame, then contrast stretch.
+     * The contrast stretch only sets the display range of grey frames, it does not change the detection.
+     * @param frame Frame to preprocess.
+     * @param config Config holding the background subtraction radius (0 disables it).
+     */
+    static void frame(ImageProcessor frame, TrackingConfig config) {
+        subtractBackground(frame, config);
+        new ContrastEnhancer().stretchHistogram(frame, SATURATED);
+    }
+
+    /**
+     * Preprocesses all the frames of an image in place, and shows it with the cyan LUT.
+     * The contrast is stretched on the current frame, as the command does.
+     * @throws TrackingException If the analysis is cancelled.
+     */
+    static void image(ImagePlus imp, TrackingConfig config) throws TrackingException {
+        ImageStack stack = imp.getStack();
+        for (int i = 1; i <= stack.getSize(); i++) {
+            subtractBackground(stack.getProcessor(i), config);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new TrackingException(TrackingException.Reason.CANCELLED, "Analysis cancelled during preprocessing.");
+            }
+        }
+        new ContrastEnhancer().stretchHistogram(imp, SATURATED);
+        imp.setLut(LUT.createLutFromColor(Color.CYAN));
+    }
+
+    private static void subtractBackground(ImageProcessor frame, TrackingConfig config) {
+        if (config.subtraction_radius > 0) {
+            new BackgroundSubtracter().rollingBallBackground(frame, config.subtraction_radius, false, false, false, true, true);
+        }
+    }
+}
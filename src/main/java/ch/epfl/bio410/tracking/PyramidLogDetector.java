@@ -0,0 +1,200 @@
+package ch.epfl.bio410.tracking;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LogDetector;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LoG detector working on a downsampled copy of a frame.
+ * The frame is block-averaged by the downsampling factor, the spots are detected on the coarse image
+ * with the TrackMate LoG detector, and their positions are then refined on the full resolution frame,
+ * with an intensity centroid computed only in a window of one radius around each candidate.
+ * See PyramidLogDetectorFactory.
+ */
+public class PyramidLogDetector<T extends RealType<T> & NativeType<T>> implements SpotDetector<T> {
+
+    /** Number of centroid iterations of the refinement. */
+    private static final int REFINE_ITERATIONS = 2;
+
+    private final RandomAccessible<T> img;
+    private final Interval interval;
+    private final double[] calibration;
+    private final double radius;
+    private final double threshold;
+    private final boolean doMedianFilter;
+    private final int factor;
+
+    private List<Spot> spots;
+    private String errorMessage;
+    private long processingTime;
+
+    /**
+     * @param img Frame to detect in (one channel, one time point).
+     * @param interval Region of the frame to detect in, in pixels.
+     * @param calibration Pixel sizes, in physical units.
+     * @param radius Radius of the spots, in physical units.
+     * @param threshold Quality threshold, as for the LoG detector.
+     * @param doMedianFilter Apply a median filter on the coarse image before detection.
+     * @param factor Downsampling factor (>= 2).
+     */
+    public PyramidLogDetector(RandomAccessible<T> img, Interval interval, double[] calibration,
+                              double radius, double threshold, boolean doMedianFilter, int factor) {
+        this.img = img;
+        this.interval = interval;
+        this.calibration = calibration;
+        this.radius = radius;
+        this.threshold = threshold;
+        this.doMedianFilter = doMedianFilter;
+        this.factor = factor;
+    }
+
+    @Override
+    public boolean checkInput() {
+        if (interval.numDimensions() != 2) {
+            errorMessage = "The pyramid detector only supports 2D frames.";
+            return false;
+        }
+        if (factor < 2) {
+            errorMessage = "Downsampling factor must be >= 2, got " + factor;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean process() {
+        long start = System.currentTimeMillis();
+        long x0 = interval.min(0);
+        long y0 = interval.min(1);
+        int width = (int) (interval.dimension(0) / factor);
+        int height = (int) (interval.dimension(1) / factor);
+        if (width < 3 || height < 3) {
+            errorMessage = "Region too small for a downsampling factor of " + factor;
+            return false;
+        }
+
+        // Block average, which keeps the intensities (and so the meaning of the quality threshold).
+        // Allocated per frame: detection runs on TrackMate threads, whose thread-local pools would never be released
+        Img<FloatType> coarse = ArrayImgs.floats(width, height);
+        RandomAccess<T> full = img.randomAccess(interval);
+        RandomAccess<FloatType> out = coarse.randomAccess();
+        float norm = 1f / (factor * factor);
+        for (int cy = 0; cy < height; cy++) {
+            for (int cx = 0; cx < width; cx++) {
+                float sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    full.setPosition(y0 + (long) cy * factor + dy, 1);
+                    for (int dx = 0; dx < factor; dx++) {
+                        full.setPosition(x0 + (long) cx * factor + dx, 0);
+                        sum += full.get().getRealFloat();
+                    }
+                }
+                out.setPosition(cx, 0);
+                out.setPosition(cy, 1);
+                out.get().set(sum * norm);
+            }
+        }
+
+        double[] coarseCalibration = calibration.clone();
+        coarseCalibration[0] *= factor;
+        coarseCalibration[1] *= factor;
+        LogDetector<FloatType> detector = new LogDetector<>(coarse, coarse, coarseCalibration, radius, threshold, true, doMedianFilter);
+        detector.setNumThreads(1);
+        if (!detector.checkInput() || !detector.process()) {
+            errorMessage = detector.getErrorMessage();
+            return false;
+        }
+
+        double radiusPixels = radius / calibration[0];
+        spots = new ArrayList<>(detector.getResult().size());
+        for (Spot candidate : detector.getResult()) {
+            // The centre of coarse pixel i is at full resolution pixel i * factor + (factor - 1) / 2
+            double x = x0 + candidate.getDoublePosition(0) / coarseCalibration[0] * factor + (factor - 1) / 2.0;
+            double y = y0 + candidate.getDoublePosition(1) / coarseCalibration[1] * factor + (factor - 1) / 2.0;
+            double[] refined = refine(full, x, y, radiusPixels);
+            spots.add(new Spot(refined[0] * calibration[0], refined[1] * calibration[1], 0,
+                    radius, candidate.getFeature(Spot.QUALITY)));
+        }
+        processingTime = System.currentTimeMillis() - start;
+        return true;
+    }
+
+    /**
+     * Moves a position to the intensity centroid (above the local minimum) of a window of one radius around it.
+     * The position is kept if the centroid leaves the window, e.g. when two spots touch.
+     */
+    private double[] refine(RandomAccess<T> full, double x, double y, double radiusPixels) {
+        int half = (int) Math.ceil(radiusPixels);
+        double cx = x;
+        double cy = y;
+        for (int iteration = 0; iteration < REFINE_ITERATIONS; iteration++) {
+            long xMin = Math.max(interval.min(0), Math.round(cx) - half);
+            long xMax = Math.min(interval.max(0), Math.round(cx) + half);
+            long yMin = Math.max(interval.min(1), Math.round(cy) - half);
+            long yMax = Math.min(interval.max(1), Math.round(cy) + half);
+            double min = Double.MAX_VALUE;
+            for (long py = yMin; py <= yMax; py++) {
+                full.setPosition(py, 1);
+                for (long px = xMin; px <= xMax; px++) {
+                    full.setPosition(px, 0);
+                    min = Math.min(min, full.get().getRealDouble());
+                }
+            }
+            double sum = 0;
+            double sumX = 0;
+            double sumY = 0;
+            for (long py = yMin; py <= yMax; py++) {
+                full.setPosition(py, 1);
+                for (long px = xMin; px <= xMax; px++) {
+                    full.setPosition(px, 0);
+                    double dx = px - cx;
+                    double dy = py - cy;
+                    if (dx * dx + dy * dy > radiusPixels * radiusPixels) {
+                        continue;
+                    }
+                    double weight = full.get().getRealDouble() - min;
+                    sum += weight;
+                    sumX += weight * px;
+                    sumY += weight * py;
+                }
+            }
+            if (sum <= 0) {
+                break;
+            }
+            double nx = sumX / sum;
+            double ny = sumY / sum;
+            if ((nx - x) * (nx - x) + (ny - y) * (ny - y) > radiusPixels * radiusPixels) {
+                break;
+            }
+            cx = nx;
+            cy = ny;
+        }
+        return new double[] {cx, cy};
+    }
+
+    @Override
+    public List<Spot> getResult() {
+        return spots;
+    }
+
+    @Override
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public long getProcessingTime() {
+        return processingTime;
+    }
+}
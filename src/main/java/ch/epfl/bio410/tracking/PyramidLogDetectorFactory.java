@@ -0,0 +1,101 @@
+package ch.epfl.bio410.tracking;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.DetectionUtils;
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.List;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.*;
+
+/**
+ * LoG detector for large sensors, where the spots cover many pixels.
+ * Each frame is downsampled by a factor picked from the pixel size and the radius, so that the spots keep a radius
+ * of about 2.5 pixels on the coarse image, the LoG runs on the coarse image,
+ * and the positions are refined on the full resolution frame around the candidates only (see PyramidLogDetector).
+ * It takes the same settings as the LoG detector, and falls back to it when the spots are too small to downsample.
+ */
+public class PyramidLogDetectorFactory<T extends RealType<T> & NativeType<T>> extends LogDetectorFactory<T> {
+
+    public static final String DETECTOR_KEY = "PYRAMID_LOG_DETECTOR";
+    public static final String NAME = "Pyramid LoG detector";
+
+    /** Radius of the spots on the coarse image, in pixels. Below about 2 pixels the LoG starts missing spots. */
+    private static final double COARSE_RADIUS = 2.5;
+
+    /**
+     * Returns the downsampling factor used for a spot radius and pixel size.
+     * @param radius Radius of the spots, in physical units.
+     * @param pixelSize Size of a pixel, in the same units.
+     * @return The factor, 1 when the frame is not downsampled.
+     */
+    public static int downsamplingFactor(double radius, double pixelSize) {
+        return Math.max(1, (int) Math.floor(radius / pixelSize / COARSE_RADIUS));
+    }
+
+    @Override
+    public SpotDetector<T> getDetector(Interval interval, int frame) {
+        double radius = (Double) settings.get(KEY_RADIUS);
+        double[] calibration = TMUtils.getSpatialCalibration(img);
+        int factor = downsamplingFactor(radius, calibration[0]);
+        if (factor < 2 || interval.numDimensions() != 2) {
+            return super.getDetector(interval, frame);
+        }
+        double threshold = (Double) settings.get(KEY_THRESHOLD);
+        boolean doMedian = (Boolean) settings.get(KEY_DO_MEDIAN_FILTERING);
+        int channel = (Integer) settings.get(KEY_TARGET_CHANNEL) - 1;
+        RandomAccessible<T> imFrame = DetectionUtils.prepareFrameImg(img, channel, frame);
+        return new PyramidLogDetector<>(imFrame, interval, calibration, radius, threshold, doMedian, factor);
+    }
+
+    @Override
+    public String getKey() {
+        return DETECTOR_KEY;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public PyramidLogDetectorFactory<T> copy() {
+        return new PyramidLogDetectorFactory<>();
+    }
+
+    /**
+     * Measures the localisation error of a set of spots against reference spots (e.g. pyramid against LoG detection).
+     * Each reference spot is matched to the nearest spot closer than maxDistance.
+     * @param reference Spots used as reference.
+     * @param spots Spots to evaluate.
+     * @param maxDistance Max distance of a match, in physical units.
+     * @return {mean distance, max distance, fraction of reference spots without a match}. Distances are NaN if nothing matched.
+     */
+    public static double[] localisationError(List<Spot> reference, List<Spot> spots, double maxDistance) {
+        double sum = 0;
+        double max = 0;
+        int matched = 0;
+        for (Spot ref : reference) {
+            double best = Double.MAX_VALUE;
+            for (Spot spot : spots) {
+                best = Math.min(best, spot.squareDistanceTo(ref));
+            }
+            if (best <= maxDistance * maxDistance) {
+                double distance = Math.sqrt(best);
+                sum += distance;
+                max = Math.max(max, distance);
+                matched++;
+            }
+        }
+        double unmatched = reference.isEmpty() ? 0 : 1.0 - (double) matched / reference.size();
+        return matched == 0
+                ? new double[] {Double.NaN, Double.NaN, unmatched}
+                : new double[] {sum / matched, max, unmatched};
+    }
+}
@@ -0,0 +1,338 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.BufferPool;
+import ch.epfl.bio410.utils.TrackingConfig;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LogDetector;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class tracks a video frame by frame, while it is acquired, for live quality control at the microscope.
+ * Frames are pushed as they arrive and processed in order on a background thread: each frame is preprocessed
+ * and its spots are detected as in the batch, then linked to the active tracks.
+ * Linking is greedy (closest pairs first, no split or merge) within the linking distance,
+ * or the gap closing distance for tracks that missed frames. A track is finished once it has not been seen
+ * for more than tracker_max_frame_gap frames.
+ * After each frame the listener receives the provisional kinematics of the active tracks and a rolling motility percentage.
+ * The results are provisional: the batch analysis of the complete video (global LAP linking) stays the reference.
+ */
+public class StreamingTracker implements AutoCloseable {
+
+    /** Receives the results while the video is tracked. Called on the tracking thread. */
+    public interface Listener {
+        /** Called after each frame. */
+        void onFrame(FrameUpdate update);
+
+        /** Called when a track is finished, if it lasts at least track_duration_min. */
+        default void onTrackFinished(TrackKinematics track) {
+        }
+    }
+
+    /** Results after a frame. */
+    public static class FrameUpdate {
+        /** Index of the frame, starting at 0. */
+        public int frame;
+        public int nSpots;
+        /** Tracks still active, lasting at least track_duration_min. */
+        public List<TrackKinematics> activeTracks;
+        public int nFinishedTracks;
+        /** Percentage of motile tracks among the tracks seen in the rolling window. */
+        public double rollingMotility;
+        /** Number of tracks the rolling motility is computed on. */
+        public int rollingTracks;
+        /** Time between the push of the frame and the end of its processing, in ms. */
+        public long latencyMillis;
+    }
+
+    /** Kinematics of a track, in µm and seconds. */
+    public static class TrackKinematics {
+        public int trackId;
+        public int nSpots;
+        public int firstFrame;
+        public int lastFrame;
+        public double duration;
+        public double totalDistance;
+        public double meanSpeed;
+        public double straightLineSpeed;
+        public double linearity;
+        public boolean motile;
+        public boolean finished;
+    }
+
+    /** Poison pill ending the tracking thread. */
+    private static final Pushed END = new Pushed(null, 0);
+
+    private static class Pushed {
+        final ImageProcessor frame;
+        final long time;
+
+        Pushed(ImageProcessor frame, long time) {
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    private static class Track {
+        final int id;
+        final List<double[]> points = new ArrayList<>(); // {frame, x, y}
+        double distance;
+
+        Track(int id) {
+            this.id = id;
+        }
+
+        double[] last() {
+            return points.get(points.size() - 1);
+        }
+    }
+
+    private final TrackingConfig config;
+    private final double pixelSize;
+    private final double frameInterval;
+    private final int rollingWindow;
+    private final Listener listener;
+    private final BlockingQueue<Pushed> queue;
+    private final Thread thread;
+
+    private final List<Track> active = new ArrayList<>();
+    private final List<TrackKinematics> finished = new ArrayList<>();
+    private int nextTrackId = 0;
+    private int frameIndex = 0;
+    private volatile Throwable failure;
+
+    /**
+     * Creates the tracker and starts its thread.
+     * @param config Detection, linking and motility parameters.
+     * @param pixelSize Size of a pixel in µm.
+     * @param frameInterval Time between frames in seconds.
+     * @param queueCapacity Max number of frames waiting to be processed. push() blocks when it is reached,
+     *                      which bounds the latency of the results.
+     * @param rollingWindow Number of frames the rolling motility is computed on.
+     * @param listener Receives the results.
+     */
+    public StreamingTracker(TrackingConfig config, double pixelSize, double frameInterval,
+                            int queueCapacity, int rollingWindow, Listener listener) {
+        this.config = config;
+        this.pixelSize = pixelSize;
+        this.frameInterval = frameInterval;
+        this.rollingWindow = rollingWindow;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.thread = new Thread(this::loop, "SpermMotility-streaming");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the next frame of the video, waiting if too many frames are already queued.
+     * @param frame The frame (channel used for detection).
+     * @throws IllegalStateException If the tracking thread failed.
+     */
+    public void push(ImageProcessor frame) throws InterruptedException {
+        Pushed pushed = new Pushed(frame, System.currentTimeMillis());
+        while (!queue.offer(pushed, 1, TimeUnit.SECONDS)) {
+            if (!thread.isAlive()) {
+                break;
+            }
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Streaming tracking failed", failure);
+        }
+    }
+
+    /** Returns the number of frames waiting to be processed. */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Processes the queued frames, finishes all the tracks and stops the thread.
+     * @return The kinematics of all the finished tracks lasting at least track_duration_min.
+     */
+    public List<TrackKinematics> finish() throws InterruptedException {
+        if (thread.isAlive()) {
+            queue.put(END);
+            thread.join();
+        }
+        synchronized (this) {
+            return new ArrayList<>(finished);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        finish();
+    }
+
+    private void loop() {
+        try {
+            while (true) {
+                Pushed pushed = queue.take();
+                if (pushed == END) {
+                    break;
+                }
+                process(pushed);
+            }
+            synchronized (this) {
+                for (Track track : active) {
+                    finishTrack(track);
+                }
+                active.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    private void process(Pushed pushed) {
+        List<Spot> spots = detect(pushed.frame);
+        FrameUpdate update = new FrameUpdate();
+        synchronized (this) {
+            link(spots, frameIndex);
+            update.frame = frameIndex;
+            update.nSpots = spots.size();
+            update.activeTracks = new ArrayList<>();
+            int motile = 0;
+            int counted = 0;
+            for (Track track : active) {
+                TrackKinematics kinematics = kinematics(track, false);
+                if (kinematics.duration >= config.track_duration_min) {
+                    update.activeTracks.add(kinematics);
+                    counted++;
+                    motile += kinematics.motile ? 1 : 0;
+                }
+            }
+            for (int i = finished.size() - 1; i >= 0 && finished.get(i).lastFrame > frameIndex - rollingWindow; i--) {
+                counted++;
+                motile += finished.get(i).motile ? 1 : 0;
+            }
+            update.nFinishedTracks = finished.size();
+            update.rollingTracks = counted;
+            update.rollingMotility = counted > 0 ? 100.0 * motile / counted : 0;
+            frameIndex++;
+        }
+        update.latencyMillis = System.currentTimeMillis() - pushed.time;
+        listener.onFrame(update);
+    }
+
+    /** Preprocesses a frame as the batch does (see Preprocessing) and detects its spots (positions in µm). */
+    private List<Spot> detect(ImageProcessor frame) {
+        // On a copy of the pixel type of the frame, as the batch subtracts the background before any conversion
+        ImageProcessor preprocessed = frame.duplicate();
+        Preprocessing.frame(preprocessed, config);
+        float[] pixels = BufferPool.current().floats("streaming.frame", frame.getPixelCount());
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = preprocessed.getf(i);
+        }
+        FloatProcessor fp = new FloatProcessor(frame.getWidth(), frame.getHeight(), pixels);
+        Img<FloatType> img = ImageJFunctions.wrapFloat(new ImagePlus("", fp));
+        double[] calibration = {pixelSize, pixelSize, 1};
+        int factor = config.detector_pyramid ? PyramidLogDetectorFactory.downsamplingFactor(config.detector_radius, pixelSize) : 1;
+        SpotDetector<FloatType> detector = factor >= 2
+                ? new PyramidLogDetector<>(img, img, calibration, config.detector_radius, config.detector_threshold, config.detector_median_filter, factor)
+                : new LogDetector<>(img, img, calibration, config.detector_radius, config.detector_threshold, true, config.detector_median_filter);
+        if (!detector.checkInput() || !detector.process()) {
+            throw new IllegalStateException("Detection failed on frame " + frameIndex + ": " + detector.getErrorMessage());
+        }
+        return detector.getResult();
+    }
+
+    /** Links the spots of a frame to the active tracks, closest pairs first, and finishes the lost tracks. */
+    private void link(List<Spot> spots, int frame) {
+        List<double[]> pairs = new ArrayList<>(); // {distance, track index, spot index}
+        for (int t = 0; t < active.size(); t++) {
+            double[] last = active.get(t).last();
+            if (frame - (int) last[0] > config.tracker_max_frame_gap) {
+                continue; // lost for more than the max frame gap, finished below
+            }
+            boolean gap = frame - (int) last[0] > 1;
+            double maxDistance = gap ? config.tracker_gap_closing_max_distance : config.tracker_linking_max_distance;
+            for (int s = 0; s < spots.size(); s++) {
+                double dx = spots.get(s).getDoublePosition(0) - last[1];
+                double dy = spots.get(s).getDoublePosition(1) - last[2];
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                if (distance <= maxDistance) {
+                    pairs.add(new double[] {distance, t, s});
+                }
+            }
+        }
+        pairs.sort((a, b) -> Double.compare(a[0], b[0]));
+        boolean[] trackUsed = new boolean[active.size()];
+        boolean[] spotUsed = new boolean[spots.size()];
+        for (double[] pair : pairs) {
+            int t = (int) pair[1];
+            int s = (int) pair[2];
+            if (trackUsed[t] || spotUsed[s]) {
+                continue;
+            }
+            trackUsed[t] = true;
+            spotUsed[s] = true;
+            Track track = active.get(t);
+            track.distance += pair[0];
+            track.points.add(new double[] {frame, spots.get(s).getDoublePosition(0), spots.get(s).getDoublePosition(1)});
+        }
+
+        for (Iterator<Track> it = active.iterator(); it.hasNext(); ) {
+            Track track = it.next();
+            if (frame - (int) track.last()[0] > config.tracker_max_frame_gap) {
+                finishTrack(track);
+                it.remove();
+            }
+        }
+        for (int s = 0; s < spots.size(); s++) {
+            if (!spotUsed[s]) {
+                Track track = new Track(nextTrackId++);
+                track.points.add(new double[] {frame, spots.get(s).getDoublePosition(0), spots.get(s).getDoublePosition(1)});
+                active.add(track);
+            }
+        }
+    }
+
+    private void finishTrack(Track track) {
+        TrackKinematics kinematics = kinematics(track, true);
+        if (kinematics.duration >= config.track_duration_min && kinematics.nSpots > 1) {
+            finished.add(kinematics);
+            listener.onTrackFinished(kinematics);
+        }
+    }
+
+    private TrackKinematics kinematics(Track track, boolean isFinished) {
+        TrackKinematics k = new TrackKinematics();
+        double[] first = track.points.get(0);
+        double[] last = track.last();
+        k.trackId = track.id;
+        k.nSpots = track.points.size();
+        k.firstFrame = (int) first[0];
+        k.lastFrame = (int) last[0];
+        k.duration = (last[0] - first[0]) * frameInterval;
+        k.totalDistance = track.distance;
+        k.meanSpeed = k.duration > 0 ? track.distance / k.duration : 0;
+        double displacement = Math.sqrt((last[1] - first[1]) * (last[1] - first[1]) + (last[2] - first[2]) * (last[2] - first[2]));
+        k.straightLineSpeed = k.duration > 0 ? displacement / k.duration : 0;
+        k.linearity = k.meanSpeed > 0 ? k.straightLineSpeed / k.meanSpeed : 0;
+        k.motile = k.meanSpeed > config.min_mean_speed;
+        k.finished = isFinished;
+        return k;
+    }
+
+    /** Returns the finished tracks so far. */
+    public synchronized List<TrackKinematics> getFinishedTracks() {
+        return Collections.unmodifiableList(new ArrayList<>(finished));
+    }
+}
@@ -5,6 +5,7 @@ import fiji.plugin.trackmate.visualization.PerTrackFeatureColorGenerator;
 import ij.IJ;
 import ij.ImagePlus;
 
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -14,17 +15,12 @@ import java.util.List;
 import ch.epfl.bio410.utils.TrackingConfig;
 import fiji.plugin.trackmate.*;
 import fiji.plugin.trackmate.detection.DetectorKeys;
-import fiji.plugin.trackmate.detection.LogDetectorFactory;
 import fiji.plugin.trackmate.features.FeatureFilter;
 import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
-import fiji.plugin.trackmate.gui.displaysettings.DisplaySettingsIO;
-import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPTrackerFactory;
-import fiji.plugin.trackmate.visualization.table.TrackTableView;
 import fiji.plugin.trackmate.visualization.hyperstack.HyperStackDisplayer;
 import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Model;
-import ij.gui.WaitForUserDialog;
 import org.apache.commons.csv.CSVRecord;
 
 
@@ -32,7 +28,9 @@ public class Tracking {
     // Default config
 
     private TrackingConfig trackingConfig;
-    private DisplaySettings displaySettings;
+    private volatile TrackMate trackmate; // running instance, used to cancel
+    private double[][] drift; // cumulated drift of each frame, null if not corrected
+    private double driftFrameInterval;
 
     public String trackingConfigName;
     public String trackingConfigPath;
@@ -44,6 +42,25 @@ public class Tracking {
     public void setConfig(TrackingConfig trackingConfig) {
         this.trackingConfig = trackingConfig;
     }
+    /**
+     * Cancels the tracking running in another thread, if any.
+     * TrackMate stops at the next step and runTracking throws a TrackingException.
+     * @param reason Reason of the cancellation, shown in the log.
+     */
+    public void cancel(String reason) {
+        TrackMate running = this.trackmate;
+        if (running != null) {
+            running.cancel(reason);
+        }
+    }
+    /** Returns the cumulated drift {dx, dy} (µm) of each frame of the last tracking run, null if the drift was not corrected. */
+    public double[][] getDrift() {
+        return this.drift;
+    }
+    /** Returns the time between the frames of the last tracking run, in seconds, to report the drift speed. */
+    public double getDriftFrameInterval() {
+        return this.driftFrameInterval;
+    }
     /**
      * Set the configuration parameters for tracking.
      * @param subtraction_radius Radius for background subtraction in pixels
@@ -91,15 +108,16 @@ public class Tracking {
     /**
      * Creates a TrackMate tracker from the specified configuration parameters.
      * @return TrackMate model object.
+     * @throws TrackingException If TrackMate fails or no spots are detected.
      */
-    public Model runTracking(ImagePlus imp) {
+    public Model runTracking(ImagePlus imp) throws TrackingException {
         IJ.log("------------------ TRACKMATE ------------------");
-        this.trackingConfig.printTrackingConfig(); // show parameters
-        IJ.log("Tracking started");
         // if config is not set, use default config
         if (this.trackingConfig == null) {
             this.loadDefaultConfig();
         }
+        this.trackingConfig.printTrackingConfig(); // show parameters
+        IJ.log("Tracking started");
         // Instantiate model object and logger
         Model model = new Model();
         model.setLogger(Logger.IJ_LOGGER);
@@ -107,8 +125,9 @@ public class Tracking {
         Settings settings = new Settings(imp);
 
 
-        // Configure detector
-        settings.detectorFactory = new LogDetectorFactory();
+        // Configure detector (factories are reused by the thread from one image to the next)
+        WorkerState state = WorkerState.current();
+        settings.detectorFactory = this.trackingConfig.detector_pyramid ? state.pyramidDetectorFactory() : state.logDetectorFactory();
         settings.detectorSettings.put(DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION, true);
         settings.detectorSettings.put(DetectorKeys.KEY_RADIUS, this.trackingConfig.detector_radius);
         settings.detectorSettings.put(DetectorKeys.KEY_TARGET_CHANNEL, 1);
@@ -124,7 +143,7 @@ public class Tracking {
 
 
         // Configure tracker
-        settings.trackerFactory = new SparseLAPTrackerFactory();
+        settings.trackerFactory = state.trackerFactory();
         settings.trackerSettings = settings.trackerFactory.getDefaultSettings();
         settings.trackerSettings.put("LINKING_MAX_DISTANCE", this.trackingConfig.tracker_linking_max_distance);
         settings.trackerSettings.put("GAP_CLOSING_MAX_DISTANCE", this.trackingConfig.tracker_gap_closing_max_distance);
@@ -150,45 +169,49 @@ public class Tracking {
 
         // Instantiate and run trackmate
         TrackMate trackmate = new TrackMate(model, settings);
-        boolean ok = trackmate.checkInput();
-        if (!ok) {
-            System.out.println(trackmate.getErrorMessage());
-            return null;
-        }
+        this.drift = null;
+        this.trackmate = trackmate;
+        try {
+            boolean ok = trackmate.checkInput();
+            if (!ok) {
+                throw new TrackingException(TrackingException.Reason.CHECK_INPUT, trackmate.getErrorMessage());
+            }
 
-        ok = trackmate.process();
-        if (!ok) {
-            System.out.println(trackmate.getErrorMessage());
-            return null;
+            ok = this.trackingConfig.drift_correction ? processWithDriftCorrection(trackmate, imp) : trackmate.process();
+            if (trackmate.isCanceled()) {
+                throw new TrackingException(TrackingException.Reason.CANCELLED, trackmate.getCancelReason());
+            }
+            if (!ok) {
+                throw new TrackingException(TrackingException.Reason.PROCESS, trackmate.getErrorMessage());
+            }
+        } finally {
+            this.trackmate = null;
         }
 
         // Check spot collection isn't empty
         IJ.log(String.valueOf(model.getSpots().getNSpots(false)));
         if (model.getSpots().getNSpots(false) == 0) {
             IJ.log("Spot collection empty. No spots detected.");
-            if (true) { // TODO: add this.stopbetweenImages to config
-                // TODO: et tester avec images sans spots
-                new WaitForUserDialog("Spot collection empty.", "No spots detected. \nPress OK to continue to the next image.").show();
-            }
-            return null; // Exit or handle the case as needed
+            throw new TrackingException(TrackingException.Reason.NO_SPOTS, "No spots detected.");
         }
 
 
-        // Display the results on top of the image
-        SelectionModel selectionModel = new SelectionModel(model);
-        DisplaySettings displaySettings = DisplaySettingsIO.readUserDefault();
-        this.displaySettings = displaySettings;
-        // Color tracks and spots by ID
-        //displaySettings.setTrackColorBy(DisplaySettings.TrackMateObject.TRACKS, TrackIndexAnalyzer.TRACK_INDEX);
-        //displaySettings.setSpotColorBy(DisplaySettings.TrackMateObject.TRACKS, TrackIndexAnalyzer.TRACK_INDEX);
-
-        // Color tracks and spots by MEAN_SPEED     // Use metric to color tracks
-        displaySettings.setTrackColorBy(DisplaySettings.TrackMateObject.TRACKS, "TRACK_MEAN_SPEED");
-        displaySettings.setSpotColorBy(DisplaySettings.TrackMateObject.TRACKS, "TRACK_MEAN_SPEED");
-        //PerTrackFeatureColorGenerator trackColor = PerTrackFeatureColorGenerator(model, "TRACK_DURATION",);
-        HyperStackDisplayer displayer = new HyperStackDisplayer(model, selectionModel, imp, displaySettings);
-        displayer.render();
-        displayer.refresh();
+        // Display the results on top of the image (no overlay to draw for the worker and the headless batch)
+        if (!GraphicsEnvironment.isHeadless()) {
+            SelectionModel selectionModel = new SelectionModel(model);
+            DisplaySettings displaySettings = state.displaySettings(); // user defaults, read once per thread
+            // Color tracks and spots by ID
+            //displaySettings.setTrackColorBy(DisplaySettings.TrackMateObject.TRACKS, TrackIndexAnalyzer.TRACK_INDEX);
+            //displaySettings.setSpotColorBy(DisplaySettings.TrackMateObject.TRACKS, TrackIndexAnalyzer.TRACK_INDEX);
+
+            // Color tracks and spots by MEAN_SPEED     // Use metric to color tracks
+            displaySettings.setTrackColorBy(DisplaySettings.TrackMateObject.TRACKS, "TRACK_MEAN_SPEED");
+            displaySettings.setSpotColorBy(DisplaySettings.TrackMateObject.TRACKS, "TRACK_MEAN_SPEED");
+            //PerTrackFeatureColorGenerator trackColor = PerTrackFeatureColorGenerator(model, "TRACK_DURATION",);
+            HyperStackDisplayer displayer = new HyperStackDisplayer(model, selectionModel, imp, displaySettings);
+            displayer.render();
+            displayer.refresh();
+        }
 
         // Echo results with the logger we set at start:
         model.getLogger().log(model.toString());
@@ -196,30 +219,47 @@ public class Tracking {
         return model;
     }
     /**
-     * Save the features of the tracks to CSV files.
+     * Runs the TrackMate steps one by one, to remove the drift of the spots between detection and linking
+     * (see DriftCorrection). The links and the edge and track features (speeds) are computed on the corrected positions,
+     * relative to the fluid, then the spots are moved back to their position in the image.
+     * @return false if a step failed.
+     */
+    private boolean processWithDriftCorrection(TrackMate trackmate, ImagePlus imp) {
+        if (!trackmate.execDetection() || !trackmate.execInitialSpotFiltering()
+                || !trackmate.computeSpotFeatures(true) || !trackmate.execSpotFiltering(true)) {
+            return false;
+        }
+        if (trackmate.isCanceled()) {
+            return false;
+        }
+        SpotCollection spots = trackmate.getModel().getSpots();
+        double[][] steps = DriftCorrection.estimate(spots, imp.getNFrames(),
+                this.trackingConfig.drift_search_distance, this.trackingConfig.tracker_linking_max_distance);
+        this.drift = DriftCorrection.apply(spots, steps);
+        this.driftFrameInterval = imp.getCalibration().frameInterval;
+        double[] last = this.drift[this.drift.length - 1];
+        double duration = (this.drift.length - 1) * this.driftFrameInterval;
+        IJ.log(String.format("Drift corrected : %.2f µm in x, %.2f µm in y over the video%s", last[0], last[1],
+                duration > 0 ? String.format(" (%.2f µm/s)", Math.hypot(last[0], last[1]) / duration) : ""));
+        if (!trackmate.execTracking() || !trackmate.computeEdgeFeatures(true) || !trackmate.computeTrackFeatures(true)) {
+            return false;
+        }
+        DriftCorrection.restore(trackmate.getModel(), this.drift);
+        return trackmate.execTrackFiltering(true);
+    }
+
+    /**
+     * Save the features of the spots and tracks to CSV files, in the format of the TrackMate tables export.
+     * The tables are written from the feature model (see FeatureTables), without any window,
+     * so this can be called headless and from another thread while the next image is tracked.
      * @param model TrackMate model object
+     * @param csvFileSpots File to save the spots features
      * @param csvFileTracks File to save the tracks features
      * @throws IOException
      */
-    public void saveFeaturesToCSV(Model model, File csvFileSpots, File csvFileTracks, String imagePath) throws IOException { // removed File csvFileSpots,
-        // Create a selection model for the TrackMate model
-        SelectionModel sm = new SelectionModel(model);
-        DisplaySettings ds = this.displaySettings;
-        // if display settings are not set, throw exception as tracking must be run first
-        if (ds == null) {
-            throw new IOException("Display settings not set. Please run tracking first.");
-        }
-
-        // Create tables for tracks
-        TrackTableView trackTableView = new TrackTableView(model, sm, ds, imagePath);
-
-        // Export the tables to CSV files
-        trackTableView.getSpotTable().exportToCsv(csvFileSpots); //TODO: uncomment if you want to save spots
-        trackTableView.getTrackTable().exportToCsv(csvFileTracks);
-
-        // Save all spots table (includes all spots, even those not in tracks)
-        // AllSpotsTableView spotsTableView = AllSpotsTableView(model, sm, ds);
-        // spotsTableView.exportToCsv(csvFileAllSpots.getAbsolutePath());
+    public void saveFeaturesToCSV(Model model, File csvFileSpots, File csvFileTracks) throws IOException {
+        FeatureTables.saveSpots(model, csvFileSpots);
+        FeatureTables.saveTracks(model, csvFileTracks);
     }
 
     /**
@@ -0,0 +1,70 @@
+package ch.epfl.bio410.tracking;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * This exception is thrown when an image cannot be analysed.
+ * It carries the reason of the failure, so that the batch can report it and continue with the next image.
+ */
+public class TrackingException extends Exception {
+
+    /** Classification of the failures of the analysis of one image. */
+    public enum Reason {
+        /** No spot was detected in the image. */
+        NO_SPOTS,
+        /** The triage flagged the video as unusable (empty, out of focus or overcrowded) and no config was set for it. */
+        TRIAGE,
+        /** TrackMate refused the settings or the image (checkInput failed). */
+        CHECK_INPUT,
+        /** TrackMate failed during detection, linking or feature computation. */
+        PROCESS,
+        /** The image or the results could not be read or written. */
+        IO,
+        /** The JVM ran out of memory. */
+        OUT_OF_MEMORY,
+        /** The analysis took longer than the configured timeout. */
+        TIMEOUT,
+        /** The analysis was cancelled. */
+        CANCELLED,
+        /** Any other error. */
+        UNKNOWN
+    }
+
+    private final Reason reason;
+
+    public TrackingException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public TrackingException(Reason reason, String message, Throwable cause) {
+        super(message, cause);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Wraps any error thrown while analysing an image into a TrackingException with the matching reason.
+     * @param t Error thrown by the analysis.
+     * @return The classified exception.
+     */
+    public static TrackingException classify(Throwable t) {
+        if (t instanceof TrackingException) {
+            return (TrackingException) t;
+        }
+        if (t instanceof IOException) {
+            return new TrackingException(Reason.IO, t.getMessage(), t);
+        }
+        if (t instanceof OutOfMemoryError) {
+            return new TrackingException(Reason.OUT_OF_MEMORY, "Out of memory, try a smaller analysis region or time window.", t);
+        }
+        if (t instanceof InterruptedException || t instanceof CancellationException) {
+            return new TrackingException(Reason.CANCELLED, "Analysis cancelled.", t);
+        }
+        return new TrackingException(Reason.UNKNOWN, t.getClass().getSimpleName() + ": " + t.getMessage(), t);
+    }
+}
@@ -0,0 +1,290 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.AnalysisRegion;
+import ch.epfl.bio410.utils.ConfigRegistry;
+import ch.epfl.bio410.utils.ImagePrefetcher;
+import ch.epfl.bio410.utils.ImageSource;
+import ch.epfl.bio410.utils.ResultWriter;
+import ch.epfl.bio410.utils.SpotIndex;
+import ch.epfl.bio410.utils.TrackingConfig;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs the analysis of one image: restriction to the analysis region, triage,
+ * preprocessing (background subtraction) and tracking.
+ * It is shared by the plugin and the batch workers, so that every entry point analyses images the same way.
+ */
+public class TrackingPipeline {
+
+    /** Property set on the images already prepared by prepare(). */
+    private static final String PREPARED = "SpermMotility.prepared";
+    /** Property holding the triage result of a prepared image. */
+    private static final String TRIAGE = "SpermMotility.triage";
+
+    private final TrackingConfig config;
+    private final Tracking tracker;
+    /** Pipelines of the configs the triage routes videos to, loaded on first use. */
+    private final Map<VideoTriage.Verdict, TrackingPipeline> routes = new EnumMap<>(VideoTriage.Verdict.class);
+    /** Tracker of the image being analysed, which is the one of a routed pipeline if the triage routed the image. */
+    private volatile Tracking currentTracker;
+    private volatile TrackingConfig currentConfig;
+
+    public TrackingPipeline(TrackingConfig config) {
+        this.config = config;
+        this.tracker = new Tracking();
+        this.tracker.setConfig(config);
+        this.currentTracker = tracker;
+        this.currentConfig = config;
+    }
+
+    public Tracking getTracker() {
+        return tracker;
+    }
+
+    public TrackingConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Preprocesses and tracks an image.
+     * If the triage is enabled, videos flagged as empty are skipped, and flagged videos are analysed
+     * with the config set for their verdict, or skipped if there is none.
+     * The image is shown with the tracks overlaid, unless running headless.
+     * @param imp Image to analyse, as opened, or as returned by prepare() with the same config.
+     * @return The TrackMate model. The analysed image (restricted and preprocessed) is its settings image.
+     * @throws TrackingException If the analysis fails, with reason TRIAGE if the video was skipped by the triage.
+     */
+    public Model run(ImagePlus imp) throws TrackingException {
+        if (imp.getProperty(PREPARED) == null) {
+            imp = prepare(imp, config);
+        }
+
+        TrackingPipeline target = this;
+        VideoTriage.Result triage = (VideoTriage.Result) imp.getProperty(TRIAGE);
+        if (triage != null) {
+            IJ.log("Triage : " + triage);
+            try {
+                target = route(triage);
+            } catch (TrackingException e) {
+                imp.close();
+                throw e;
+            }
+        }
+        currentTracker = target.tracker;
+        currentConfig = target.config;
+        return target.process(imp);
+    }
+
+    /**
+     * Triages an opened image and restricts it to the analysis region and time window, before any processing.
+     * The triage reads a few frames of the region from the opened image, and the region is only copied
+     * if the video is analysed, so a skipped video is never read in full.
+     * It only depends on the config, so the batch runs it on the prefetch thread (see ImagePrefetcher.Preparer),
+     * where the analysed pixels of virtual and memory-mapped stacks are read while the previous image is analysed.
+     * @param imp Image as opened. It is closed if it is copied.
+     * @param config Config holding the region, time window and triage parameters.
+     * @return The image to pass to run(), with the triage result.
+     */
+    public static ImagePlus prepare(ImagePlus imp, TrackingConfig config) {
+        try {
+            return prepare(imp, config, bytes -> { });
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e); // nothing waits without a prefetcher
+        }
+    }
+
+    /**
+     * Triages and restricts an opened image, see prepare(ImagePlus, TrackingConfig).
+     * The copy of the analysed region is reserved in the memory budget of the prefetcher before it is made.
+     * @param reservation Reservation of the image in the prefetcher.
+     * @throws InterruptedException If the prefetch was cancelled while waiting for memory.
+     */
+    public static ImagePlus prepare(ImagePlus imp, TrackingConfig config, ImagePrefetcher.Reservation reservation)
+            throws InterruptedException {
+        AnalysisRegion.Region region = AnalysisRegion.resolve(imp, config);
+        // Check a few frames before paying for the copy, the preprocessing and the detection on all of them
+        VideoTriage.Result triage = config.triage_enabled ? VideoTriage.run(imp, config, region) : null;
+        ImagePlus prepared = imp;
+        if (triage == null || !isSkipped(triage, config)) {
+            long copy = AnalysisRegion.copyBytes(imp, region);
+            if (copy > 0) {
+                // The opened image is held until the copy is done, unless it stays on disk
+                reservation.reserve(copy + (imp.getStack().isVirtual() ? 0 : (long) imp.getSizeInBytes()));
+            }
+            prepared = AnalysisRegion.restrict(imp, region);
+            if (prepared != imp) {
+                imp.close();
+            }
+        }
+        prepared.setProperty(PREPARED, Boolean.TRUE);
+        if (triage != null) {
+            prepared.setProperty(TRIAGE, triage);
+        }
+        return prepared;
+    }
+
+    /** Preprocesses and tracks an image restricted to the analysis region. */
+    private Model process(ImagePlus imp) throws TrackingException {
+        if (!GraphicsEnvironment.isHeadless()) {
+            imp.show();
+        }
+        Preprocessing.image(imp, config);
+
+        // Run tracking on the image
+        return tracker.runTracking(imp);
+    }
+
+    /**
+     * Returns the pipeline analysing the videos with the given triage verdict.
+     * @throws TrackingException If the video is empty, or flagged and no config is set for its verdict.
+     */
+    private TrackingPipeline route(VideoTriage.Result triage) throws TrackingException {
+        if (triage.verdict == VideoTriage.Verdict.OK) {
+            return this;
+        }
+        if (isSkipped(triage, config)) {
+            throw new TrackingException(TrackingException.Reason.TRIAGE, "Skipped by the triage: " + triage);
+        }
+        TrackingPipeline routed = routes.get(triage.verdict);
+        if (routed == null) {
+            routed = new TrackingPipeline(loadRouteConfig(routeConfig(triage.verdict, config)));
+            routes.put(triage.verdict, routed);
+        }
+        IJ.log("Video analysed with the config " + routed.config.configName);
+        return routed;
+    }
+
+    /** Returns true if the video is empty, or flagged and no config is set for its verdict. */
+    private static boolean isSkipped(VideoTriage.Result triage, TrackingConfig config) {
+        return triage.verdict != VideoTriage.Verdict.OK && routeConfig(triage.verdict, config) == null;
+    }
+
+    /** Returns the name of the config a flagged verdict is routed to, or null if there is none. */
+    private static String routeConfig(VideoTriage.Verdict verdict, TrackingConfig config) {
+        String name;
+        switch (verdict) {
+            case OVERCROWDED:
+                name = config.triage_overcrowded_config;
+                break;
+            case OUT_OF_FOCUS:
+                name = config.triage_out_of_focus_config;
+                break;
+            default:
+                name = null;
+        }
+        return name == null || name.trim().isEmpty() ? null : name.trim();
+    }
+
+    /**
+     * Loads the config a verdict is routed to: a file (relative paths are resolved next to the main config)
+     * or the name of a preset of the resources.
+     */
+    private TrackingConfig loadRouteConfig(String name) throws TrackingException {
+        File file = new File(name);
+        if (!file.isAbsolute() && config.configPath != null && new File(config.configPath).getParentFile() != null) {
+            file = new File(new File(config.configPath).getParentFile(), name);
+        }
+        if (file.isFile()) {
+            try {
+                return TrackingConfig.load(file);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new TrackingException(TrackingException.Reason.CHECK_INPUT, "Invalid triage config " + file + ": " + e.getMessage(), e);
+            }
+        }
+        TrackingConfig preset = ConfigRegistry.get(name);
+        if (preset == null) {
+            throw new TrackingException(TrackingException.Reason.CHECK_INPUT, "Triage config not found: " + name);
+        }
+        return preset;
+    }
+
+    /**
+     * Grades the tracks of a tracked image (WHO grades, hyperactivation), with the config the image was tracked with.
+     * Must be called right after run(), before the next image is analysed.
+     * @param model TrackMate model returned by run().
+     * @return The grades of the tracks.
+     */
+    public List<MotilityClassifier.TrackGrade> classify(Model model) {
+        return new MotilityClassifier(currentConfig).classify(model);
+    }
+
+    /**
+     * Grades the tracks and queues the export of the result files of a tracked image.
+     * See export(Model, List, ImageSource, File, ResultWriter).
+     */
+    public Future<Boolean> export(Model model, ImageSource source, File resultsFolder, ResultWriter writer) {
+        return export(model, classify(model), source, resultsFolder, writer);
+    }
+
+    /**
+     * Queues the export of the spots, tracks and classification CSV files of a tracked image,
+     * and of the spatial index of its spots (see SpotIndex), and of its drift if it was corrected (see DriftCorrection).
+     * The files are written in the background while the next image is tracked.
+     * Must be called right after run(), before the next image is analysed.
+     * @param model TrackMate model returned by run().
+     * @param grades Grades of the tracks returned by classify().
+     * @param source Image the model was computed from.
+     * @param resultsFolder Folder where the CSV files are written.
+     * @param writer Writer doing the export.
+     * @return Completes with true once the files are written.
+     */
+    public Future<Boolean> export(Model model, List<MotilityClassifier.TrackGrade> grades, ImageSource source,
+                                  File resultsFolder, ResultWriter writer) {
+        String name = source.getName();
+        File csvSpotsPath = new File(resultsFolder, "spots_" + name + ".csv");
+        File csvTracksPath = new File(resultsFolder, "tracks_" + name + ".csv");
+        File csvClassificationPath = new File(resultsFolder, "classification_" + name + ".csv");
+        File indexPath = new File(resultsFolder, "spots_" + name + ".idx");
+        List<SpotIndex.Entry> indexEntries = indexEntries(model);
+        Tracking tracker = currentTracker;
+        double[][] drift = tracker.getDrift();
+        double frameInterval = tracker.getDriftFrameInterval();
+        List<File> targets = new ArrayList<>(Arrays.asList(csvSpotsPath, csvTracksPath, csvClassificationPath, indexPath));
+        if (drift != null) {
+            targets.add(new File(resultsFolder, "drift_" + name + ".csv"));
+        }
+        return writer.submit(name, targets, tempFiles -> {
+            tracker.saveFeaturesToCSV(model, tempFiles.get(0), tempFiles.get(1));
+            tracker.cleanTracksCSV(tempFiles.get(1));
+            MotilityClassifier.saveToCSV(grades, tempFiles.get(2));
+            SpotIndex.write(indexEntries, tempFiles.get(3), SpotIndex.DEFAULT_CELL_SIZE, SpotIndex.DEFAULT_FRAMES_PER_BLOCK);
+            if (drift != null) {
+                DriftCorrection.saveToCSV(drift, frameInterval, tempFiles.get(4));
+            }
+        });
+    }
+
+    /**
+     * Copies the visible spots of a model for the spot index, on the calling thread.
+     */
+    private static List<SpotIndex.Entry> indexEntries(Model model) {
+        List<SpotIndex.Entry> entries = new ArrayList<>(model.getSpots().getNSpots(true));
+        for (Spot spot : model.getSpots().iterable(true)) {
+            Integer trackId = model.getTrackModel().trackIDOf(spot);
+            entries.add(new SpotIndex.Entry(spot.ID(), trackId == null ? -1 : trackId, spot.getFeature(Spot.FRAME).intValue(),
+                    spot.getDoublePosition(0), spot.getDoublePosition(1), spot.getFeature(Spot.POSITION_T)));
+        }
+        return entries;
+    }
+
+    /**
+     * Cancels the analysis running in another thread.
+     * @param reason Reason of the cancellation, shown in the log.
+     */
+    public void cancel(String reason) {
+        currentTracker.cancel(reason);
+    }
+}
@@ -0,0 +1,202 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.AnalysisRegion;
+import ch.epfl.bio410.utils.BufferPool;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * This class is a cheap check run before the full pipeline, to flag videos that are not worth tracking.
+ * It samples a few frames, downscales them so that a sperm head is about 2 pixels wide,
+ * and counts the blobs of a difference of Gaussians (an approximation of the LoG detector).
+ * It also measures the sharpness of the frames (variance of the Laplacian, relative to the mean intensity).
+ * The whole check reads a handful of frames, instead of preprocessing and detecting on all of them,
+ * and can run on the opened (virtual or memory-mapped) video before it is copied (see run(ImagePlus, TrackingConfig, Region)).
+ * Its buffers are reused from one video to the next (see BufferPool).
+ */
+public class VideoTriage {
+
+    /** Outcome of the triage. */
+    public enum Verdict {
+        OK,
+        /** Fewer spots per frame than triage_min_spots. */
+        EMPTY,
+        /** Sharpness below triage_min_sharpness. */
+        OUT_OF_FOCUS,
+        /** More spots per frame than triage_max_spots. */
+        OVERCROWDED
+    }
+
+    /** Measures of the triage, and the resulting verdict. */
+    public static class Result {
+        public Verdict verdict;
+        public double spotsPerFrame;
+        public double sharpness;
+        public int sampledFrames;
+
+        @Override
+        public String toString() {
+            return verdict + String.format(" (%.1f spots per frame, sharpness %.4f, %d frames sampled)",
+                    spotsPerFrame, sharpness, sampledFrames);
+        }
+    }
+
+    /** Radius of a sperm head in the downscaled frames, in pixels. */
+    private static final double DOWNSCALED_RADIUS = 2.0;
+    /** Blobs must stand out of the noise of the DoG response by this many robust standard deviations. */
+    private static final double NOISE_SIGMAS = 6.0;
+
+    /**
+     * Runs the triage of a video.
+     * @param imp Video to check (channel 1 is used, as for the detection).
+     * @param config Config holding the detector radius and the triage thresholds.
+     * @return The measures and the verdict.
+     */
+    public static Result run(ImagePlus imp, TrackingConfig config) {
+        return run(imp, config, null);
+    }
+
+    /**
+     * Runs the triage of the analysed region of a video.
+     * Only the sampled frames are read, and only within the region, so the video can be checked before it is copied.
+     * @param imp Video to check, as opened (channel 1 is used, as for the detection).
+     * @param config Config holding the detector radius and the triage thresholds.
+     * @param region Analysed region and time window of the video (see AnalysisRegion.resolve()), or null for the whole video.
+     * @return The measures and the verdict.
+     */
+    public static Result run(ImagePlus imp, TrackingConfig config, AnalysisRegion.Region region) {
+        boolean timeIsSlices = imp.getNFrames() == 1 && imp.getNSlices() > 1;
+        int first = region == null ? 1 : region.first;
+        int last = region == null ? (timeIsSlices ? imp.getNSlices() : imp.getNFrames()) : region.last;
+        int nSampled = Math.max(1, Math.min(config.triage_sampled_frames, last - first + 1));
+
+        double pixelWidth = imp.getCalibration().pixelWidth > 0 ? imp.getCalibration().pixelWidth : 1;
+        double radiusPixels = config.detector_radius / pixelWidth;
+        int factor = Math.max(1, (int) Math.floor(radiusPixels / DOWNSCALED_RADIUS));
+        double sigma = Math.max(0.5, radiusPixels / factor / Math.sqrt(2)); // LoG scale of a blob of this radius
+
+        Result result = new Result();
+        result.sampledFrames = nSampled;
+        ImageStack stack = imp.getStack();
+        double spots = 0;
+        double sharpness = 0;
+        for (int s = 0; s < nSampled; s++) {
+            int t = first + (int) Math.round((double) s * (last - first) / Math.max(1, nSampled - 1));
+            int index = timeIsSlices ? imp.getStackIndex(1, t, 1) : imp.getStackIndex(1, 1, t);
+            ImageProcessor ip = region == null ? stack.getProcessor(index) : AnalysisRegion.readPlane(imp, region, index);
+            FloatProcessor frame = downscale(ip, factor);
+            sharpness += sharpness(frame);
+            spots += countBlobs(frame, sigma);
+        }
+        result.spotsPerFrame = spots / nSampled;
+        result.sharpness = sharpness / nSampled;
+
+        if (result.spotsPerFrame < config.triage_min_spots) {
+            result.verdict = Verdict.EMPTY;
+        } else if (config.triage_max_spots > 0 && result.spotsPerFrame > config.triage_max_spots) {
+            result.verdict = Verdict.OVERCROWDED;
+        } else if (config.triage_min_sharpness > 0 && result.sharpness < config.triage_min_sharpness) {
+            result.verdict = Verdict.OUT_OF_FOCUS;
+        } else {
+            result.verdict = Verdict.OK;
+        }
+        return result;
+    }
+
+    /** Averages blocks of factor x factor pixels. */
+    private static FloatProcessor downscale(ImageProcessor ip, int factor) {
+        if (ip.getWidth() < factor || ip.getHeight() < factor) {
+            factor = 1;
+        }
+        int width = ip.getWidth() / factor;
+        int height = ip.getHeight() / factor;
+        float[] pixels = BufferPool.current().floats("triage.frame", width * height);
+        float norm = 1f / (factor * factor);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += ip.getf(x * factor + dx, y * factor + dy);
+                    }
+                }
+                pixels[y * width + x] = sum * norm;
+            }
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+    /** Counts the maxima of the difference of Gaussians that stand out of its noise. */
+    private static int countBlobs(FloatProcessor frame, double sigma) {
+        FloatProcessor small = copy(frame, "triage.small");
+        FloatProcessor large = copy(frame, "triage.large");
+        GaussianBlur blur = new GaussianBlur();
+        blur.blurGaussian(small, sigma, sigma, 0.002);
+        blur.blurGaussian(large, 1.6 * sigma, 1.6 * sigma, 0.002);
+        float[] dog = (float[]) small.getPixels();
+        float[] background = (float[]) large.getPixels();
+        for (int i = 0; i < dog.length; i++) {
+            dog[i] -= background[i];
+        }
+        double noise = robustStd(dog);
+        if (noise <= 0) {
+            return 0;
+        }
+        Polygon maxima = new MaximumFinder().getMaxima(small, NOISE_SIGMAS * noise, true);
+        return maxima == null ? 0 : maxima.npoints;
+    }
+
+    private static FloatProcessor copy(FloatProcessor frame, String buffer) {
+        float[] pixels = BufferPool.current().floats(buffer, frame.getPixelCount());
+        System.arraycopy((float[]) frame.getPixels(), 0, pixels, 0, pixels.length);
+        return new FloatProcessor(frame.getWidth(), frame.getHeight(), pixels);
+    }
+
+    /** Standard deviation estimated from the median absolute deviation, insensitive to the blobs. */
+    private static double robustStd(float[] values) {
+        float[] sorted = BufferPool.current().floats("triage.sort", values.length);
+        System.arraycopy(values, 0, sorted, 0, values.length);
+        Arrays.sort(sorted);
+        float median = sorted[sorted.length / 2];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = Math.abs(values[i] - median);
+        }
+        Arrays.sort(sorted);
+        return 1.4826 * sorted[sorted.length / 2];
+    }
+
+    /** Variance of the Laplacian divided by the squared mean intensity. */
+    private static double sharpness(FloatProcessor frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        float[] pixels = (float[]) frame.getPixels();
+        double sum = 0;
+        double sumSq = 0;
+        double mean = 0;
+        int n = 0;
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int i = y * width + x;
+                double laplacian = pixels[i - 1] + pixels[i + 1] + pixels[i - width] + pixels[i + width] - 4 * pixels[i];
+                sum += laplacian;
+                sumSq += laplacian * laplacian;
+                mean += pixels[i];
+                n++;
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        mean /= n;
+        double variance = sumSq / n - (sum / n) * (sum / n);
+        return mean != 0 ? variance / (mean * mean) : 0;
+    }
+}
@@ -0,0 +1,61 @@
+package ch.epfl.bio410.tracking;
+
+import fiji.plugin.trackmate.detection.LogDetectorFactory;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
+import fiji.plugin.trackmate.gui.displaysettings.DisplaySettingsIO;
+import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPTrackerFactory;
+
+/**
+ * This class holds the TrackMate objects reused from one image to the next by the thread analysing the images:
+ * the detector and tracker factories, and the user display settings, read from disk only once.
+ * Each thread owns its own state (see current()), so nothing is shared or locked.
+ * The TrackMate Model and Settings stay per image, since they hold the results.
+ */
+public class WorkerState {
+
+    private static final ThreadLocal<WorkerState> STATES = ThreadLocal.withInitial(WorkerState::new);
+
+    private DisplaySettings displaySettings;
+    private LogDetectorFactory logDetectorFactory;
+    private PyramidLogDetectorFactory pyramidDetectorFactory;
+    private SparseLAPTrackerFactory trackerFactory;
+
+    /** Returns the state of the calling thread. */
+    public static WorkerState current() {
+        return STATES.get();
+    }
+
+    /**
+     * Returns a copy of the user default display settings, for the overlay of one image.
+     * A copy is needed since each image keeps the settings of its overlay, which stay editable
+     * from the TrackMate display panel of that image only. It is only called when the results are displayed,
+     * so headless batches and workers make no copy.
+     */
+    public DisplaySettings displaySettings() {
+        if (displaySettings == null) {
+            displaySettings = DisplaySettingsIO.readUserDefault();
+        }
+        return displaySettings.copy();
+    }
+
+    public LogDetectorFactory logDetectorFactory() {
+        if (logDetectorFactory == null) {
+            logDetectorFactory = new LogDetectorFactory();
+        }
+        return logDetectorFactory;
+    }
+
+    public PyramidLogDetectorFactory pyramidDetectorFactory() {
+        if (pyramidDetectorFactory == null) {
+            pyramidDetectorFactory = new PyramidLogDetectorFactory();
+        }
+        return pyramidDetectorFactory;
+    }
+
+    public SparseLAPTrackerFactory trackerFactory() {
+        if (trackerFactory == null) {
+            trackerFactory = new SparseLAPTrackerFactory();
+        }
+        return trackerFactory;
+    }
+}
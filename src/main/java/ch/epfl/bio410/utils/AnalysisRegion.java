@@ -0,0 +1,405 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.measure.Calibration;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.*;
+import java.io.File;
+
+/**
+ * This class restricts an image to the region and the time window that should be analysed.
+ * It is applied right after opening the image, before any preprocessing or detection,
+ * so that pixels outside the analysed region are never processed.
+ */
+public class AnalysisRegion {
+
+    /** Number of frames sampled to build the projection used by the automatic crop. */
+    private static final int AUTO_CROP_SAMPLED_FRAMES = 10;
+    /** Sigma of the Gaussian smoothing of the projection, in pixels, applied after a 3x3 median that removes the hot pixels. */
+    private static final double AUTO_CROP_SMOOTHING = 2.0;
+    /** Pixels above median + AUTO_CROP_MADS * MAD of the smoothed projection are considered signal. */
+    private static final double AUTO_CROP_MADS = 6.0;
+    /** Signal pixels closer than this distance, in pixels, belong to the same area (e.g. the spots of a drop). */
+    private static final int AUTO_CROP_MERGE_DISTANCE = 16;
+    /** Areas with fewer signal pixels than this are noise. */
+    private static final int AUTO_CROP_MIN_PIXELS = 25;
+
+    /** Region and time window of an image to analyse, resolved from the config by resolve(). */
+    public static class Region {
+        /** Analysed rectangle, in pixels of the image. */
+        public final Rectangle bounds;
+        /** Non-rectangular region, relative to the bounds, or null if the whole rectangle is analysed. */
+        public final Roi mask;
+        /** First and last analysed time points (1-based, inclusive). */
+        public final int first;
+        public final int last;
+        public final int nTimepoints;
+        /** True if the time points are the slices of the image (stack with a single frame). */
+        public final boolean timeIsSlices;
+        /** True if the region is the whole image and all its time points. */
+        public final boolean whole;
+
+        private Region(Rectangle bounds, Roi mask, int first, int last, int nTimepoints, boolean timeIsSlices, boolean whole) {
+            this.bounds = bounds;
+            this.mask = mask;
+            this.first = first;
+            this.last = last;
+            this.nTimepoints = nTimepoints;
+            this.timeIsSlices = timeIsSlices;
+            this.whole = whole;
+        }
+
+        @Override
+        public String toString() {
+            return "x=" + bounds.x + " y=" + bounds.y + " w=" + bounds.width + " h=" + bounds.height
+                    + ", frames " + first + "-" + last + " of " + nTimepoints;
+        }
+    }
+
+    /**
+     * Resolves the analysis region (ROI file, rectangle or automatic crop) and the analysed time window set in the config,
+     * without copying the image. Only the automatic crop reads pixels (a few frames).
+     * @param imp Image to analyse, as opened.
+     * @param config Config holding the region and time window parameters.
+     * @return The region to analyse.
+     */
+    public static Region resolve(ImagePlus imp, TrackingConfig config) {
+        boolean timeIsSlices = imp.getNFrames() == 1 && imp.getNSlices() > 1;
+        int nTimepoints = timeIsSlices ? imp.getNSlices() : imp.getNFrames();
+        int[] window = frameWindow(imp, config, nTimepoints);
+
+        Roi roi = resolveRoi(imp, config, window[0], window[1], timeIsSlices);
+        boolean fullWindow = window[0] == 1 && window[1] == nTimepoints;
+        Rectangle image = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        Rectangle bounds = roi == null ? image : roi.getBounds().intersection(image);
+        Roi mask = null;
+        // Pixels outside non-rectangular regions (e.g. a mask drawn around debris) are cleared
+        if (roi != null && roi.getType() != Roi.RECTANGLE) {
+            mask = (Roi) roi.clone();
+            mask.setLocation(roi.getBounds().x - bounds.x, roi.getBounds().y - bounds.y);
+        }
+        return new Region(bounds, mask, window[0], window[1], nTimepoints, timeIsSlices, roi == null && fullWindow);
+    }
+
+    /**
+     * Restricts the image to the analysis region (ROI file, rectangle or automatic crop)
+     * and to the analysed time window set in the config.
+     * See restrict(ImagePlus, Region).
+     */
+    public static ImagePlus restrict(ImagePlus imp, TrackingConfig config) {
+        return restrict(imp, resolve(imp, config));
+    }
+
+    /**
+     * Restricts the image to a region and time window returned by resolve().
+     * The calibration (pixel size and frame interval) is kept, so speeds stay in µm/s.
+     * Virtual stacks are always copied to memory, but only over the analysed region and frames:
+     * the preprocessing works in place and TrackMate reads the pixels from the heap.
+     * A virtual or memory-mapped stack analysed over its whole frame and all its frames is therefore copied in full.
+     * The copy is made in new pixel arrays, owned by the restricted image.
+     * @param imp Image to restrict.
+     * @param region Region of this image to analyse.
+     * @return The restricted image, or the input image itself if nothing has to be removed.
+     */
+    public static ImagePlus restrict(ImagePlus imp, Region region) {
+        if (region.whole && !imp.getStack().isVirtual()) {
+            return imp;
+        }
+        ImagePlus restricted = copyRegion(imp, region);
+        IJ.log("Analysis region: " + region);
+        return restricted;
+    }
+
+    /**
+     * Returns the heap taken by the copy restrict() makes of an image, to reserve it before copying.
+     * @param imp Image to restrict.
+     * @param region Region of this image to analyse.
+     * @return The size of the copy in bytes, or 0 if restrict() returns the image itself.
+     */
+    public static long copyBytes(ImagePlus imp, Region region) {
+        if (region.whole && !imp.getStack().isVirtual()) {
+            return 0;
+        }
+        int nTimepoints = region.last - region.first + 1;
+        long planes = (long) imp.getNChannels() * (region.timeIsSlices ? nTimepoints : (long) imp.getNSlices() * nTimepoints);
+        int bytesPerPixel = imp.getBitDepth() == 24 ? 4 : imp.getBitDepth() / 8;
+        return (long) region.bounds.width * region.bounds.height * bytesPerPixel * planes;
+    }
+
+    /**
+     * Reads one plane of an image within the analysis region, without copying the rest of the plane.
+     * Planes of memory-mapped stacks are read directly from the mapping.
+     * @param imp Image, as opened.
+     * @param region Region of this image to analyse.
+     * @param n Stack index of the plane (1-based).
+     * @return A new processor of the size of the region bounds, cleared outside non-rectangular regions.
+     */
+    public static ImageProcessor readPlane(ImagePlus imp, Region region, int n) {
+        Rectangle bounds = region.bounds;
+        ImageProcessor ip = newProcessor(bounds.width, bounds.height, imp.getBitDepth());
+        Object plane = ip.getPixels();
+        ImageStack source = imp.getStack();
+        if (source instanceof MappedTiffStack) {
+            ((MappedTiffStack) source).readRegion(n, bounds, plane);
+        } else {
+            Object pixels = source.getPixels(n);
+            for (int y = 0; y < bounds.height; y++) {
+                System.arraycopy(pixels, (bounds.y + y) * imp.getWidth() + bounds.x, plane, y * bounds.width, bounds.width);
+            }
+        }
+        if (region.mask != null) {
+            ip.setValue(0);
+            ip.fillOutside(region.mask);
+        }
+        return ip;
+    }
+
+    /** Copies the region and the time window of an image into a new image. */
+    private static ImagePlus copyRegion(ImagePlus imp, Region region) {
+        Rectangle bounds = region.bounds;
+        int nChannels = imp.getNChannels();
+        int nSlices = region.timeIsSlices ? region.last - region.first + 1 : imp.getNSlices();
+        int nFrames = region.timeIsSlices ? 1 : region.last - region.first + 1;
+        ImageStack stack = new ImageStack(bounds.width, bounds.height);
+        for (int t = 0; t < nFrames; t++) {
+            for (int z = 0; z < nSlices; z++) {
+                for (int c = 1; c <= nChannels; c++) {
+                    int n = region.timeIsSlices ? imp.getStackIndex(c, region.first + z, 1) : imp.getStackIndex(c, z + 1, region.first + t);
+                    stack.addSlice(null, readPlane(imp, region, n).getPixels());
+                }
+            }
+        }
+        ImagePlus restricted = new ImagePlus(imp.getTitle(), stack);
+        restricted.setDimensions(nChannels, nSlices, nFrames);
+        restricted.setOpenAsHyperStack(nChannels > 1 || nFrames > 1);
+        Calibration calibration = imp.getCalibration().copy();
+        calibration.xOrigin -= bounds.x;
+        calibration.yOrigin -= bounds.y;
+        restricted.setCalibration(calibration);
+        return restricted;
+    }
+
+    private static ImageProcessor newProcessor(int width, int height, int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+                return new ByteProcessor(width, height);
+            case 16:
+                return new ShortProcessor(width, height);
+            case 24:
+                return new ColorProcessor(width, height);
+            case 32:
+                return new FloatProcessor(width, height);
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth " + bitDepth);
+        }
+    }
+
+    /**
+     * Computes the first and last analysed frame (1-based, inclusive) from the config.
+     * The time window in seconds is converted to frames with the frame interval of the image.
+     */
+    private static int[] frameWindow(ImagePlus imp, TrackingConfig config, int nTimepoints) {
+        int first = Math.max(1, Math.min(config.first_frame, nTimepoints));
+        int last = nTimepoints;
+        if (config.max_frames > 0) {
+            last = Math.min(last, first + config.max_frames - 1);
+        }
+        double frameInterval = imp.getCalibration().frameInterval;
+        if (config.max_duration > 0 && frameInterval > 0) {
+            int framesInWindow = (int) Math.floor(config.max_duration / frameInterval) + 1;
+            last = Math.min(last, first + framesInWindow - 1);
+        }
+        return new int[]{first, last};
+    }
+
+    /**
+     * Returns the region to analyse, in pixel coordinates, or null if the whole frame is analysed.
+     * Priority: ROI file, then rectangle, then automatic crop.
+     */
+    private static Roi resolveRoi(ImagePlus imp, TrackingConfig config, int first, int last, boolean timeIsSlices) {
+        Rectangle image = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        Roi roi = null;
+        if (config.roi_path != null && !config.roi_path.isEmpty()) {
+            if (new File(config.roi_path).exists()) {
+                roi = RoiDecoder.open(config.roi_path);
+            }
+            if (roi == null) {
+                IJ.log("Could not read analysis ROI " + config.roi_path + ". Using the whole frame.");
+            }
+        } else if (config.roi_width > 0 && config.roi_height > 0) {
+            roi = new Roi(config.roi_x, config.roi_y, config.roi_width, config.roi_height);
+        } else if (config.auto_crop) {
+            Rectangle signal = findSignalBounds(imp, first, last, timeIsSlices);
+            if (signal != null) {
+                int margin = (int) Math.ceil(config.tracker_linking_max_distance / imp.getCalibration().pixelWidth);
+                signal.grow(margin, margin);
+                roi = new Roi(signal.intersection(image));
+            }
+        }
+        if (roi == null) {
+            return null;
+        }
+        Rectangle bounds = roi.getBounds().intersection(image);
+        if (bounds.isEmpty()) {
+            IJ.log("Analysis region lies outside the image. Using the whole frame.");
+            return null;
+        }
+        if (bounds.equals(image) && roi.getType() == Roi.RECTANGLE) {
+            return null;
+        }
+        return roi.getType() == Roi.RECTANGLE ? new Roi(bounds) : roi;
+    }
+
+    /**
+     * Finds the area holding the signal, from a maximum intensity projection of a few frames sampled evenly in the analysed window.
+     * The projection is median filtered (hot pixels) and smoothed (noise), its background (the median) is subtracted,
+     * and the pixels above a robust threshold (median absolute deviations above the background) are kept.
+     * Kept pixels closer than AUTO_CROP_MERGE_DISTANCE are grouped into areas, and the area holding the most signal is returned,
+     * so that noise, hot pixels or a bright edge away from the sample do not stretch the crop.
+     * @return The bounding box of the main area, or null if no signal is found.
+     */
+    public static Rectangle findSignalBounds(ImagePlus imp, int first, int last, boolean timeIsSlices) {
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        float[] projection = new float[width * height];
+        java.util.Arrays.fill(projection, -Float.MAX_VALUE);
+
+        int nSampled = Math.min(AUTO_CROP_SAMPLED_FRAMES, last - first + 1);
+        ImageStack stack = imp.getStack();
+        for (int s = 0; s < nSampled; s++) {
+            int t = first + (int) Math.round((double) s * (last - first) / Math.max(1, nSampled - 1));
+            int index = timeIsSlices ? imp.getStackIndex(1, t, 1) : imp.getStackIndex(1, 1, t);
+            ImageProcessor ip = stack.getProcessor(index);
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = Math.max(projection[i], ip.getf(i));
+            }
+        }
+        FloatProcessor smoothed = new FloatProcessor(width, height, projection);
+        new RankFilters().rank(smoothed, 1, RankFilters.MEDIAN);
+        new GaussianBlur().blurGaussian(smoothed, AUTO_CROP_SMOOTHING, AUTO_CROP_SMOOTHING, 0.002);
+
+        float[] sorted = projection.clone();
+        java.util.Arrays.sort(sorted);
+        float background = sorted[sorted.length / 2];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = Math.abs(projection[i] - background);
+        }
+        java.util.Arrays.sort(sorted);
+        double threshold = AUTO_CROP_MADS * Math.max(sorted[sorted.length / 2], 1e-6 * Math.abs(background));
+        float[] signal = new float[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            signal[i] = projection[i] - background > threshold ? (float) (projection[i] - background) : 0;
+        }
+        return mainArea(signal, width, height);
+    }
+
+    /**
+     * Removes the connected groups of signal pixels smaller than AUTO_CROP_MIN_PIXELS (noise),
+     * groups the remaining pixels closer than AUTO_CROP_MERGE_DISTANCE (connected components of the dilated signal)
+     * and returns the bounding box of the signal pixels of the group with the highest total signal.
+     */
+    private static Rectangle mainArea(float[] signal, int width, int height) {
+        boolean[] kept = new boolean[signal.length];
+        int[] labels = new int[signal.length];
+        int[] queue = new int[signal.length];
+        int label = 0;
+        for (int start = 0; start < signal.length; start++) {
+            if (signal[start] > 0 && labels[start] == 0) {
+                int size = fill(start, signal, labels, ++label, queue, width, height);
+                for (int k = 0; k < size && size >= AUTO_CROP_MIN_PIXELS; k++) {
+                    kept[queue[k]] = true;
+                }
+            }
+        }
+
+        // Dilate with a square, with the running counts of kept pixels along the rows then the columns
+        int r = AUTO_CROP_MERGE_DISTANCE;
+        int[] rows = new int[signal.length];
+        for (int y = 0; y < height; y++) {
+            int count = 0;
+            for (int x = -r; x < width; x++) {
+                if (x + r < width && kept[y * width + x + r]) count++;
+                if (x - r - 1 >= 0 && kept[y * width + x - r - 1]) count--;
+                if (x >= 0) rows[y * width + x] = count;
+            }
+        }
+        float[] dilated = new float[signal.length];
+        for (int x = 0; x < width; x++) {
+            int count = 0;
+            for (int y = -r; y < height; y++) {
+                if (y + r < height) count += rows[(y + r) * width + x];
+                if (y - r - 1 >= 0) count -= rows[(y - r - 1) * width + x];
+                if (y >= 0) dilated[y * width + x] = count;
+            }
+        }
+
+        java.util.Arrays.fill(labels, 0);
+        label = 0;
+        Rectangle best = null;
+        double bestSignal = 0;
+        for (int start = 0; start < signal.length; start++) {
+            if (dilated[start] <= 0 || labels[start] != 0) {
+                continue;
+            }
+            int size = fill(start, dilated, labels, ++label, queue, width, height);
+            double total = 0;
+            int xMin = width, yMin = height, xMax = -1, yMax = -1;
+            for (int k = 0; k < size; k++) {
+                int i = queue[k];
+                if (kept[i]) {
+                    total += signal[i];
+                    xMin = Math.min(xMin, i % width);
+                    xMax = Math.max(xMax, i % width);
+                    yMin = Math.min(yMin, i / width);
+                    yMax = Math.max(yMax, i / width);
+                }
+            }
+            if (total > bestSignal) {
+                bestSignal = total;
+                best = new Rectangle(xMin, yMin, xMax - xMin + 1, yMax - yMin + 1);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Labels the 8-connected pixels with a positive value reachable from a start pixel.
+     * @return The number of pixels labelled, which are the first entries of the queue.
+     */
+    private static int fill(int start, float[] values, int[] labels, int label, int[] queue, int width, int height) {
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        labels[start] = label;
+        while (head < tail) {
+            int i = queue[head++];
+            int x = i % width;
+            int y = i / width;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = x + dx;
+                    int ny = y + dy;
+                    if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+                        int n = ny * width + nx;
+                        if (values[n] > 0 && labels[n] == 0) {
+                            labels[n] = label;
+                            queue[tail++] = n;
+                        }
+                    }
+                }
+            }
+        }
+        return tail;
+    }
+}
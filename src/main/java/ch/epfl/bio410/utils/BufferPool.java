@@ -0,0 +1,40 @@
+package ch.epfl.bio410.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class holds the scratch buffers reused from one frame and one image to the next (triage, live tracking).
+ * Each thread owns its own pool (see current()), so buffers are never shared between threads and nothing is locked.
+ * A buffer is reused while the requested size does not change, which is the case over a batch of clips
+ * acquired with the same settings; it is replaced otherwise.
+ * A buffer returned by the pool is only valid until the same buffer is requested again on the same thread.
+ * Only buffers of about one frame are pooled, never whole stacks, so the pool of a thread stays small,
+ * including the pool of an analysis thread abandoned after a timeout.
+ */
+public class BufferPool {
+
+    private static final ThreadLocal<BufferPool> POOLS = ThreadLocal.withInitial(BufferPool::new);
+
+    private final Map<String, float[]> floats = new HashMap<>();
+
+    /** Returns the pool of the calling thread. */
+    public static BufferPool current() {
+        return POOLS.get();
+    }
+
+    /**
+     * Returns a scratch buffer. Its content is undefined.
+     * @param key Name of the buffer, unique to its user (e.g. "triage.frame").
+     * @param length Number of elements.
+     * @return A buffer of exactly this length.
+     */
+    public float[] floats(String key, int length) {
+        float[] buffer = floats.get(key);
+        if (buffer == null || buffer.length != length) {
+            buffer = new float[length];
+            floats.put(key, buffer);
+        }
+        return buffer;
+    }
+}
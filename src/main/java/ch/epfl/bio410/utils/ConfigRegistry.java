@@ -0,0 +1,78 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * This class holds the config presets shipped in the "configs" folder of the resources.
+ * The resources (or the jar) are scanned once, the first time a preset is requested,
+ * and the presets are then served from memory.
+ */
+public class ConfigRegistry {
+
+    private static final String FOLDER = "configs";
+
+    /** Loaded on first use by the class loader, which makes the initialisation thread-safe. */
+    private static class Holder {
+        static final Map<String, TrackingConfig> PRESETS = loadPresets();
+    }
+
+    /**
+     * Returns a copy of a preset, so that callers can modify it freely.
+     * @param name File name of the preset (e.g. "default.properties").
+     * @return The preset, or null if it does not exist.
+     */
+    public static TrackingConfig get(String name) {
+        TrackingConfig preset = Holder.PRESETS.get(name);
+        return preset == null ? null : preset.copy();
+    }
+
+    /** Returns the names of the presets, sorted. */
+    public static List<String> names() {
+        return new ArrayList<>(Holder.PRESETS.keySet());
+    }
+
+    private static Map<String, TrackingConfig> loadPresets() {
+        Map<String, TrackingConfig> presets = new LinkedHashMap<>();
+        List<String> filePaths = utils.listFilesInResourceFolder(FOLDER);
+        if (filePaths == null) {
+            return presets;
+        }
+        List<String> names = new ArrayList<>();
+        for (String filePath : filePaths) {
+            String name = new File(filePath).getName();
+            if (name.endsWith(".properties")) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            String resource = FOLDER + "/" + name; // system file separator is not applicable here
+            try (InputStream in = ConfigRegistry.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    continue;
+                }
+                Properties properties = new Properties();
+                properties.load(in);
+                TrackingConfig config = new TrackingConfig();
+                config.applyProperties(properties);
+                config.validate();
+                config.configName = name;
+                config.configPath = resource;
+                presets.put(name, config);
+            } catch (IOException | IllegalArgumentException e) {
+                IJ.log("Invalid config preset " + resource + ": " + e.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(presets);
+    }
+}
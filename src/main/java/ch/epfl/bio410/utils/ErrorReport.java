@@ -0,0 +1,80 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class records the images of a batch that could not be analysed, with the reason.
+ * Each failure is appended to errors.csv in the results folder as soon as it happens,
+ * so the report is complete even if the batch is interrupted.
+ */
+public class ErrorReport {
+
+    public static final String FILE_NAME = "errors.csv";
+
+    private final File file;
+    private final Map<String, Integer> countsByReason = new LinkedHashMap<>();
+    private int count = 0;
+
+    /**
+     * Constructor for ErrorReport.
+     * @param resultsFolder Folder where errors.csv is written.
+     */
+    public ErrorReport(File resultsFolder) {
+        this.file = new File(resultsFolder, FILE_NAME);
+    }
+
+    /**
+     * Records a failure.
+     * @param imageName Name of the image.
+     * @param reason Classification of the failure (e.g. NO_SPOTS, TIMEOUT).
+     * @param message Details of the failure.
+     */
+    public synchronized void add(String imageName, String reason, String message) {
+        IJ.log("ERROR -- " + imageName + " not analysed (" + reason + "): " + message);
+        countsByReason.merge(reason, 1, Integer::sum);
+        boolean writeHeader = !file.exists();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            if (writeHeader) {
+                writer.write("TIME,IMAGE,REASON,MESSAGE\n");
+            }
+            String time = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            writer.write(time + "," + quote(imageName) + "," + reason + "," + quote(message) + "\n");
+        } catch (IOException e) {
+            IJ.log("Could not write to " + file + ": " + e.getMessage());
+        }
+        count++;
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "";
+        }
+        return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+    }
+
+    /** Number of failures recorded. */
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Logs the number of failures per reason. */
+    public synchronized void logSummary() {
+        if (count == 0) {
+            IJ.log("All images were analysed.");
+            return;
+        }
+        IJ.log(count + " image(s) could not be analysed, see " + file.getAbsolutePath() + ":");
+        for (Map.Entry<String, Integer> entry : countsByReason.entrySet()) {
+            IJ.log("- " + entry.getKey() + " : " + entry.getValue());
+        }
+    }
+}
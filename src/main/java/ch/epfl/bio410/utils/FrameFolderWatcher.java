@@ -0,0 +1,142 @@
+package ch.epfl.bio410.utils;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * This class watches a folder where an acquisition software writes frames (or short stacks), one file at a time.
+ * Files are returned in name order once they are complete, i.e. once their size has not changed for a short while,
+ * since the creation event is received before the acquisition software has finished writing the file.
+ */
+public class FrameFolderWatcher implements AutoCloseable {
+
+    /** Time a file size must stay unchanged before the file is considered complete, in ms. */
+    private static final long SETTLE_MILLIS = 500;
+
+    private final Path folder;
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    private final WatchService watchService;
+    private final Set<Path> seen = new HashSet<>();
+    /** Files not complete yet: path -> {size, time of the last size change}. */
+    private final Map<Path, long[]> pending = new TreeMap<>();
+
+    /**
+     * Starts watching a folder. Files already in the folder are returned first.
+     * @param folder Folder to watch.
+     * @param patterns Comma separated glob patterns matched against the file names (e.g. "*.tif").
+     * @throws IOException If the folder cannot be watched.
+     */
+    public FrameFolderWatcher(Path folder, String patterns) throws IOException {
+        this.folder = folder;
+        for (String pattern : patterns.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.trim().toLowerCase()));
+            }
+        }
+        this.watchService = folder.getFileSystem().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        scan();
+    }
+
+    /**
+     * Waits for the next complete file.
+     * @param timeoutMillis Max time to wait.
+     * @return The file, or null if no new file was completed in time.
+     * @throws IOException If the folder cannot be read.
+     */
+    public Path next(long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            Path ready = nextComplete();
+            if (ready != null) {
+                return ready;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            WatchKey key = watchService.poll(Math.min(remaining, SETTLE_MILLIS / 2), TimeUnit.MILLISECONDS);
+            if (key == null) {
+                continue;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    scan(); // events were lost
+                } else {
+                    add(folder.resolve((Path) event.context()));
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Returns the first pending file (in name order) once its size has settled, and removes it from the pending files.
+     * Returns null while the first pending file is still being written, even if later files are complete,
+     * so that frames always come out in name order. Pending files deleted meanwhile are dropped.
+     */
+    private Path nextComplete() throws IOException {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, long[]>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, long[]> entry = entries.next();
+            Path file = entry.getKey();
+            long[] state = entry.getValue();
+            if (!Files.exists(file)) {
+                entries.remove();
+                continue;
+            }
+            long size = Files.size(file);
+            if (size != state[0]) {
+                state[0] = size;
+                state[1] = now;
+            } else if (size > 0 && now - state[1] >= SETTLE_MILLIS) {
+                entries.remove();
+                return file;
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private void scan() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            files.sorted().forEach(this::add);
+        }
+    }
+
+    private void add(Path file) {
+        if (seen.contains(file) || !Files.isRegularFile(file)) {
+            return;
+        }
+        Path name = file.getFileSystem().getPath(file.getFileName().toString().toLowerCase());
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(name)) {
+                seen.add(file);
+                pending.put(file, new long[] {-1, System.currentTimeMillis()});
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,242 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads the next images of a batch on a dedicated I/O thread while the current one is processed.
+ * Each image is opened, then prepared on the same thread (e.g. restricted to the analysed region, see Preparer),
+ * so that decoding and copying pixels never block the analysis.
+ * At most "depth" images are read ahead, and the images held in memory (prefetched or being processed)
+ * never exceed the memory budget, except for the image being processed itself:
+ * an image is only opened if its estimated size fits, and the preparer reserves its copies before making them (see Reservation).
+ * Images must be taken in order with take(), and released with release() once closed.
+ */
+public class ImagePrefetcher implements AutoCloseable {
+
+    /** Step run on the I/O thread on each image once opened. */
+    public interface Preparer {
+        /**
+         * Prepares an opened image for the analysis. Runs on the I/O thread, concurrently with the analysis of the previous image.
+         * @param imp Image as opened (possibly a virtual or memory-mapped stack).
+         * @param reservation Reservation of the image, to update before copying pixels to the heap.
+         * @return The image to analyse, which may be a copy of the opened one.
+         * @throws InterruptedException If the prefetch was cancelled while waiting for memory.
+         */
+        ImagePlus prepare(ImagePlus imp, Reservation reservation) throws InterruptedException;
+    }
+
+    /** Memory reserved for the image being prepared. */
+    public interface Reservation {
+        /**
+         * Replaces the memory reserved for the image, waiting until it fits in the budget
+         * or until the image is the one being processed.
+         * @param bytes Heap the image will hold once prepared, including the copies being made.
+         * @throws InterruptedException If the prefetch was cancelled while waiting.
+         */
+        void reserve(long bytes) throws InterruptedException;
+    }
+
+    private final List<ImageSource> sources;
+    private final int depth;
+    private final long memoryBudget;
+    private final Preparer preparer;
+    private final ExecutorService ioExecutor;
+
+    private final Map<Integer, Future<ImagePlus>> pending = new HashMap<>();
+    private final Map<Integer, Long> reserved = new HashMap<>();
+    /** Size estimated before opening each source, read from the file header once. */
+    private final Map<Integer, Long> estimates = new HashMap<>();
+    private long reservedBytes = 0;
+    private int nextToSchedule = 0;
+    private int current = 0;
+
+    /**
+     * Constructor for ImagePrefetcher.
+     * @param sources Images of the batch, in processing order.
+     * @param depth Number of images read ahead of the current one (0 disables prefetching).
+     * @param memoryBudgetBytes Max memory held by loaded images, in bytes (0 = a quarter of the max heap).
+     */
+    public ImagePrefetcher(List<ImageSource> sources, int depth, long memoryBudgetBytes) {
+        this(sources, depth, memoryBudgetBytes, (imp, reservation) -> imp);
+    }
+
+    /**
+     * Constructor for ImagePrefetcher.
+     * @param sources Images of the batch, in processing order.
+     * @param depth Number of images read ahead of the current one (0 disables prefetching).
+     * @param memoryBudgetBytes Max memory held by loaded images, in bytes (0 = a quarter of the max heap).
+     * @param preparer Step run on each image once opened, on the I/O thread.
+     */
+    public ImagePrefetcher(List<ImageSource> sources, int depth, long memoryBudgetBytes, Preparer preparer) {
+        this.sources = sources;
+        this.depth = Math.max(0, depth);
+        this.memoryBudget = memoryBudgetBytes > 0 ? memoryBudgetBytes : IJ.maxMemory() / 4;
+        this.preparer = preparer;
+        this.ioExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "SpermMotility-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the image at the given index, waiting for it if it is still loading,
+     * and starts loading the next ones.
+     * @param index Index of the image in the source list. Indices must be taken in increasing order.
+     * @return The opened and prepared image.
+     * @throws IOException If the image could not be read.
+     */
+    public ImagePlus take(int index) throws IOException {
+        Future<ImagePlus> future;
+        synchronized (this) {
+            current = index;
+            notifyAll(); // the image may be waiting for memory, it can now be prepared
+            // Drop what was scheduled before this index and never taken
+            for (int i : pending.keySet().toArray(new Integer[0])) {
+                if (i < index) {
+                    pending.remove(i).cancel(true);
+                    releaseReservation(i);
+                }
+            }
+            nextToSchedule = Math.max(nextToSchedule, index);
+            if (!pending.containsKey(index)) {
+                schedule(index);
+            }
+            future = pending.remove(index);
+            scheduleAhead();
+        }
+        // Wait without holding the lock, the loading task updates the reservations
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + sources.get(index), e);
+        } catch (ExecutionException e) {
+            release(index);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not load " + sources.get(index) + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Frees the memory reserved for an image once it has been closed,
+     * so that the next images can be prefetched.
+     * @param index Index of the image in the source list.
+     */
+    public synchronized void release(int index) {
+        releaseReservation(index);
+        scheduleAhead();
+    }
+
+    private void releaseReservation(int index) {
+        Long bytes = reserved.remove(index);
+        if (bytes != null) {
+            reservedBytes -= bytes;
+            notifyAll();
+        }
+    }
+
+    /** Replaces the reservation of an image being prepared once it fits (see Reservation). */
+    private synchronized void reserve(int index, long bytes) throws InterruptedException {
+        while (reserved.containsKey(index) && index != current && reservedBytes - reserved.get(index) + bytes > memoryBudget) {
+            wait();
+        }
+        Long previous = reserved.get(index);
+        if (previous != null) {
+            reserved.put(index, bytes);
+            reservedBytes += bytes - previous;
+            notifyAll();
+        }
+    }
+
+    /** Schedules the next images while the depth and memory budget allow it. */
+    private void scheduleAhead() {
+        while (nextToSchedule < sources.size() && nextToSchedule <= current + depth) {
+            long estimate = estimate(nextToSchedule);
+            if (nextToSchedule != current && reservedBytes + estimate > memoryBudget) {
+                return;
+            }
+            schedule(nextToSchedule);
+        }
+    }
+
+    private void schedule(int index) {
+        ImageSource source = sources.get(index);
+        long estimate = estimate(index);
+        reserved.put(index, estimate);
+        reservedBytes += estimate;
+        pending.put(index, ioExecutor.submit(() -> {
+            ImagePlus imp = preparer.prepare(source.open(), bytes -> reserve(index, bytes));
+            // Replace the reservation by the heap actually held once prepared (e.g. the copy of the analysed region)
+            synchronized (this) {
+                Long previous = reserved.get(index);
+                if (previous != null) {
+                    long actual = imp.getStack().isVirtual() ? 0 : (long) imp.getSizeInBytes(); // virtual and mapped stacks stay on disk
+                    reserved.put(index, actual);
+                    reservedBytes += actual - previous;
+                    notifyAll();
+                }
+            }
+            return imp;
+        }));
+        nextToSchedule = Math.max(nextToSchedule, index + 1);
+    }
+
+    private long estimate(int index) {
+        return estimates.computeIfAbsent(index, i -> estimateBytes(sources.get(i)));
+    }
+
+    /**
+     * Estimates the heap an image takes once opened, before opening it.
+     * Uncompressed TIFFs are memory-mapped and other formats are opened as virtual stacks:
+     * they take no heap until the preparer reserves and copies their analysed region.
+     * Other TIFFs are decoded in full by ImageJ: their decoded size is computed from the TIFF header.
+     */
+    private static long estimateBytes(ImageSource source) {
+        if (!source.isTiff()) {
+            return 0;
+        }
+        Path path = source.getPath();
+        try {
+            FileInfo[] infos = new TiffDecoder(path.getParent() == null ? "" : path.getParent().toString() + File.separator,
+                    path.getFileName().toString()).getTiffInfo();
+            if (infos == null || infos.length == 0) {
+                return Files.size(path);
+            }
+            if (MappedTiffStack.isMappable(infos)) {
+                return 0;
+            }
+            FileInfo fi = infos[0];
+            long planes = infos.length == 1 ? Math.max(1, fi.nImages) : infos.length;
+            return (long) fi.width * fi.height * fi.getBytesPerPixel() * planes;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Future<ImagePlus> future : pending.values()) {
+            future.cancel(true);
+        }
+        pending.clear();
+        ioExecutor.shutdownNow();
+    }
+}
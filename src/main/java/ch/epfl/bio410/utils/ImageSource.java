@@ -0,0 +1,107 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import loci.formats.FormatException;
+import loci.plugins.BF;
+import loci.plugins.in.ImporterOptions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * This class describes one work item of a batch: a file, and the series to analyse
+ * if the file holds several of them (e.g. multi-position .nd2 or .czi files).
+ */
+public class ImageSource {
+
+    private final Path path;
+    private final int series;
+    private final int seriesCount;
+    private final String name;
+
+    /**
+     * Constructor for ImageSource.
+     * @param path Path to the image file.
+     * @param series Index of the series to open (0 for single-series files).
+     * @param seriesCount Number of series in the file.
+     * @param name Unique name of the work item, used to name the result files.
+     */
+    public ImageSource(Path path, int series, int seriesCount, String name) {
+        this.path = path;
+        this.series = series;
+        this.seriesCount = seriesCount;
+        this.name = name;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getSeries() {
+        return series;
+    }
+
+    public int getSeriesCount() {
+        return seriesCount;
+    }
+
+    /** Name of the work item, without extension (e.g. "day1_well2_s3"). */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns true if the file is a TIFF, opened with the ImageJ opener. */
+    public boolean isTiff() {
+        return isTiff(path);
+    }
+
+    static boolean isTiff(Path path) {
+        String fileName = path.getFileName().toString().toLowerCase();
+        return fileName.endsWith(".tif") || fileName.endsWith(".tiff");
+    }
+
+    /**
+     * Opens the image.
+     * Uncompressed TIFF files are memory-mapped (see MappedTiffStack), other TIFF files are opened with the ImageJ opener,
+     * and all other formats through Bio-Formats as a virtual stack, so planes are only read when they are accessed.
+     * @return The opened image.
+     * @throws IOException If the file cannot be read.
+     */
+    public ImagePlus open() throws IOException {
+        if (isTiff()) {
+            ImagePlus imp = MappedTiffStack.open(path, name);
+            if (imp != null) {
+                return imp;
+            }
+            imp = IJ.openImage(path.toString());
+            if (imp == null) {
+                throw new IOException("Could not open " + path);
+            }
+            return imp;
+        }
+        try {
+            ImporterOptions options = new ImporterOptions();
+            options.setId(path.toString());
+            options.setVirtual(true);
+            options.setQuiet(true);
+            options.setOpenAllSeries(false);
+            for (int s = 0; s < seriesCount; s++) {
+                options.setSeriesOn(s, s == series);
+            }
+            ImagePlus[] imps = BF.openImagePlus(options);
+            if (imps == null || imps.length == 0) {
+                throw new IOException("Bio-Formats returned no image for " + this);
+            }
+            imps[0].setTitle(name);
+            return imps[0];
+        } catch (FormatException e) {
+            throw new IOException("Unsupported file " + this + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return seriesCount > 1 ? path + " [series " + series + "]" : path.toString();
+    }
+}
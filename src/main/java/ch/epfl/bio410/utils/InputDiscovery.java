@@ -0,0 +1,125 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import loci.formats.FormatException;
+import loci.formats.ImageReader;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This class lists the work items of a batch: it walks an input folder (optionally recursively),
+ * keeps the files matching a list of glob patterns, and creates one work item per series.
+ */
+public class InputDiscovery {
+
+    /** Default glob patterns, matched against the file name. */
+    public static final String DEFAULT_PATTERNS = "*.tif, *.tiff, *.nd2, *.czi";
+    /** Name of the folder where results are written, never searched for inputs. */
+    public static final String RESULTS_FOLDER = "results";
+
+    /**
+     * Lists the work items found in a folder.
+     * @param root Folder to search.
+     * @param patterns Comma separated glob patterns (e.g. "*.tif, *.nd2"). Patterns containing
+     *                 a '/' are matched against the path relative to root, others against the file name.
+     * @param recursive Search subfolders.
+     * @return The work items, sorted by path and series.
+     * @throws IOException If the folder cannot be listed.
+     */
+    public static List<ImageSource> discover(Path root, String patterns, boolean recursive) throws IOException {
+        List<PathMatcher> nameMatchers = new ArrayList<>();
+        List<PathMatcher> pathMatchers = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            // Case-insensitive matching on the extension is what users expect (.TIF, .Nd2)
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.toLowerCase());
+            if (pattern.contains("/")) {
+                pathMatchers.add(matcher);
+            } else {
+                nameMatchers.add(matcher);
+            }
+        }
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root, recursive ? Integer.MAX_VALUE : 1)) {
+            files = walk
+                    .filter(Files::isRegularFile)
+                    .filter(p -> !root.relativize(p).startsWith(RESULTS_FOLDER))
+                    .filter(p -> matches(root, p, nameMatchers, pathMatchers))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        List<ImageSource> sources = new ArrayList<>();
+        for (Path file : files) {
+            String name = outputName(root, file);
+            int seriesCount = countSeries(file);
+            if (seriesCount <= 1) {
+                sources.add(new ImageSource(file, 0, 1, name));
+            } else {
+                for (int s = 0; s < seriesCount; s++) {
+                    sources.add(new ImageSource(file, s, seriesCount, name + "_s" + s));
+                }
+            }
+        }
+        return sources;
+    }
+
+    private static boolean matches(Path root, Path file, List<PathMatcher> nameMatchers, List<PathMatcher> pathMatchers) {
+        Path name = file.getFileName().getFileSystem().getPath(file.getFileName().toString().toLowerCase());
+        for (PathMatcher matcher : nameMatchers) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        Path relative = root.relativize(file);
+        Path relativeLower = relative.getFileSystem().getPath(relative.toString().replace('\\', '/').toLowerCase());
+        for (PathMatcher matcher : pathMatchers) {
+            if (matcher.matches(relativeLower)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds a unique result name from the path relative to root, without extension.
+     * Files in subfolders get the subfolder names as prefix (e.g. "day1_well2").
+     */
+    static String outputName(Path root, Path file) {
+        String relative = root.relativize(file).toString().replace('\\', '/');
+        int dot = relative.lastIndexOf('.');
+        if (dot > relative.lastIndexOf('/')) {
+            relative = relative.substring(0, dot);
+        }
+        return relative.replace('/', '_');
+    }
+
+    /**
+     * Counts the series in a file. TIFF files are opened by ImageJ and count as a single series;
+     * other formats are asked to Bio-Formats, which only reads the metadata.
+     */
+    private static int countSeries(Path file) {
+        if (ImageSource.isTiff(file)) {
+            return 1;
+        }
+        try (ImageReader reader = new ImageReader()) {
+            reader.setId(file.toString());
+            return reader.getSeriesCount();
+        } catch (FormatException | IOException e) {
+            IJ.log("Could not read the series of " + file + ": " + e.getMessage());
+            return 1;
+        }
+    }
+}
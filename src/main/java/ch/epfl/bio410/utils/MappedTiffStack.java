@@ -0,0 +1,342 @@
+package ch.epfl.bio410.utils;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Virtual stack over a memory-mapped, uncompressed TIFF file.
+ * The IFDs are parsed once when the file is opened, and the planes are read from the mapping when they are accessed,
+ * so opening a stack of several GB takes neither time nor heap, and workers reading the same file share the OS page cache.
+ * Nothing is read ahead: the pages of a plane are read from disk on first access, by the thread accessing it.
+ * The batch copies the analysis region and time window to heap with readRegion() on the prefetch thread
+ * (see AnalysisRegion and ImagePrefetcher), so these reads overlap with the analysis of the previous image
+ * and the copy counts in the prefetch budget, while the rest of the file is never read.
+ * The analysis itself is not zero-copy: preprocessing and TrackMate need the pixels on the heap,
+ * so analysing the whole frame and all the frames copies the whole stack, as IJ.openImage would.
+ * Mapping only saves heap when a region or a time window is set.
+ */
+public class MappedTiffStack extends VirtualStack {
+
+    /** Max size of one mapping (a MappedByteBuffer is indexed by an int). */
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final Path path;
+    private final int fileType;
+    private final ByteOrder order;
+    private final int planeBytes;
+    private final long[] offsets;
+    /** Chunk of each plane, and first byte of each chunk in the file. */
+    private final int[] chunkOfPlane;
+    private final List<Long> chunkStarts = new ArrayList<>();
+    private final List<Long> chunkEnds = new ArrayList<>();
+    private final MappedByteBuffer[] chunks;
+
+    private MappedTiffStack(Path path, FileInfo fi, long[] offsets, int bytesPerPixel) {
+        super(fi.width, fi.height, null, path.getParent() == null ? "" : path.getParent().toString());
+        this.path = path;
+        this.fileType = fi.fileType;
+        this.order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.planeBytes = fi.width * fi.height * bytesPerPixel;
+        this.offsets = offsets;
+        this.chunkOfPlane = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            int last = chunkStarts.size() - 1;
+            if (last >= 0 && offsets[i] >= chunkStarts.get(last)
+                    && offsets[i] + planeBytes - chunkStarts.get(last) <= MAX_CHUNK_BYTES) {
+                chunkEnds.set(last, Math.max(chunkEnds.get(last), offsets[i] + planeBytes));
+            } else {
+                chunkStarts.add(offsets[i]);
+                chunkEnds.add(offsets[i] + planeBytes);
+            }
+            chunkOfPlane[i] = chunkStarts.size() - 1;
+        }
+        this.chunks = new MappedByteBuffer[chunkStarts.size()];
+        setBitDepth(bytesPerPixel * 8);
+    }
+
+    /**
+     * Opens an uncompressed TIFF as a memory-mapped virtual stack.
+     * @param path TIFF file.
+     * @param title Title of the image.
+     * @return The image, or null if the file cannot be mapped (compressed, tiled, RGB...) and must be opened by ImageJ.
+     * @throws IOException If the file cannot be read.
+     */
+    public static ImagePlus open(Path path, String title) throws IOException {
+        TiffDecoder decoder = new TiffDecoder(path.getParent() == null ? "" : path.getParent().toString() + File.separator,
+                path.getFileName().toString());
+        FileInfo[] infos = decoder.getTiffInfo();
+        if (infos == null || infos.length == 0) {
+            return null;
+        }
+        if (!isMappable(infos)) {
+            return null;
+        }
+        FileInfo fi = infos[0];
+        int bytesPerPixel = bytesPerPixel(fi.fileType);
+
+        long[] offsets;
+        if (infos.length == 1) {
+            // ImageJ stacks: one IFD describing nImages planes separated by gapBetweenImages
+            offsets = new long[Math.max(1, fi.nImages)];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = fi.getOffset() + (long) i * (fi.width * fi.height * bytesPerPixel + fi.gapBetweenImages);
+            }
+        } else {
+            offsets = new long[infos.length];
+            for (int i = 0; i < infos.length; i++) {
+                offsets[i] = infos[i].getOffset();
+            }
+        }
+
+        MappedTiffStack stack = new MappedTiffStack(path, fi, offsets, bytesPerPixel);
+        ImagePlus imp = new ImagePlus(title, stack);
+        Properties description = description(fi.description);
+        int[] dimensions = dimensions(description, offsets.length);
+        if (dimensions[0] * dimensions[1] * dimensions[2] == offsets.length) {
+            imp.setDimensions(dimensions[0], dimensions[1], dimensions[2]);
+            imp.setOpenAsHyperStack(dimensions[0] > 1 || dimensions[2] > 1);
+        }
+        setCalibration(imp.getCalibration(), fi, description);
+        imp.setFileInfo(fi);
+        return imp;
+    }
+
+    /**
+     * Sets the calibration of the image from the TIFF tags and the ImageJ description, as ImageJ's FileOpener does:
+     * TiffDecoder only reads the pixel size, the unit, the spacing and the frame interval are only written in the description.
+     */
+    private static void setCalibration(Calibration calibration, FileInfo fi, Properties description) {
+        String unit = description.getProperty("unit", fi.unit);
+        if (fi.pixelWidth > 0 && unit != null) {
+            calibration.pixelWidth = fi.pixelWidth;
+            calibration.pixelHeight = fi.pixelHeight;
+            calibration.pixelDepth = fi.pixelDepth;
+            calibration.setUnit(unit);
+        }
+        double spacing = number(description, "spacing");
+        if (spacing != 0) {
+            calibration.pixelDepth = Math.abs(spacing);
+        }
+        double fps = number(description, "fps");
+        if (fps > 0) {
+            calibration.fps = fps;
+        }
+        double frameInterval = number(description, "finterval");
+        if (frameInterval > 0) {
+            calibration.frameInterval = frameInterval;
+        } else if (fi.frameInterval > 0) {
+            calibration.frameInterval = fi.frameInterval;
+        } else if (fps > 0) {
+            // Videos converted by other tools may only set the frame rate
+            calibration.frameInterval = 1 / fps;
+        }
+        String timeUnit = description.getProperty("tunit");
+        if (timeUnit != null) {
+            calibration.setTimeUnit(timeUnit);
+        }
+    }
+
+    /**
+     * Returns true if the TIFF described by the IFDs can be mapped: uncompressed grey planes of the same size and type,
+     * each stored in one block.
+     * @param infos IFDs read by TiffDecoder.
+     */
+    static boolean isMappable(FileInfo[] infos) {
+        FileInfo fi = infos[0];
+        if (bytesPerPixel(fi.fileType) == 0 || fi.compression > FileInfo.COMPRESSION_NONE || fi.stripOffsets != null && fi.stripOffsets.length > 1
+                && !contiguous(fi.stripOffsets, fi.stripLengths)) {
+            return false;
+        }
+        for (FileInfo plane : infos) {
+            if (plane.width != fi.width || plane.height != fi.height || plane.fileType != fi.fileType
+                    || plane.compression > FileInfo.COMPRESSION_NONE || plane.intelByteOrder != fi.intelByteOrder) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int bytesPerPixel(int fileType) {
+        switch (fileType) {
+            case FileInfo.GRAY8:
+                return 1;
+            case FileInfo.GRAY16_UNSIGNED:
+                return 2;
+            case FileInfo.GRAY32_FLOAT:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    /** Returns true if the strips of a plane follow each other, so the plane can be read in one block. */
+    private static boolean contiguous(int[] stripOffsets, int[] stripLengths) {
+        if (stripLengths == null) {
+            return false;
+        }
+        for (int i = 1; i < stripOffsets.length; i++) {
+            if ((long) stripOffsets[i] != (long) stripOffsets[i - 1] + stripLengths[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Reads the key=value lines written by ImageJ in the image description (empty for other descriptions). */
+    private static Properties description(String description) {
+        Properties properties = new Properties();
+        if (description == null || !description.startsWith("ImageJ")) {
+            return properties;
+        }
+        for (String line : description.split("\n")) {
+            String[] keyValue = line.split("=", 2);
+            if (keyValue.length == 2) {
+                properties.setProperty(keyValue[0].trim(), keyValue[1].trim());
+            }
+        }
+        return properties;
+    }
+
+    /** Returns a number of the description, or 0 if it is missing or invalid. */
+    private static double number(Properties description, String key) {
+        try {
+            return Double.parseDouble(description.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Reads the channels, slices and frames written by ImageJ in the image description. */
+    private static int[] dimensions(Properties description, int nImages) {
+        if (description.isEmpty()) {
+            return new int[] {1, 1, nImages};
+        }
+        return new int[] {(int) Math.max(1, number(description, "channels")), (int) Math.max(1, number(description, "slices")),
+                (int) Math.max(1, number(description, "frames"))};
+    }
+
+    /** Maps the chunk holding a plane, once. */
+    private synchronized MappedByteBuffer chunk(int index) throws IOException {
+        if (chunks[index] == null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long start = chunkStarts.get(index);
+                chunks[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, chunkEnds.get(index) - start);
+            }
+        }
+        return chunks[index];
+    }
+
+    /** Returns a buffer positioned at the first byte of a plane (1-based). */
+    private ByteBuffer plane(int n) {
+        int plane = n - 1;
+        try {
+            MappedByteBuffer chunk = chunk(chunkOfPlane[plane]);
+            ByteBuffer buffer = chunk.duplicate().order(order); // own position, safe to read from several threads
+            buffer.position((int) (offsets[plane] - chunkStarts.get(chunkOfPlane[plane])));
+            return buffer;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map plane " + n + " of " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies a rectangle of a plane into an existing pixel array, straight from the mapping.
+     * @param n Plane, 1-based.
+     * @param bounds Rectangle to copy, inside the plane.
+     * @param pixels Destination, of bounds.width * bounds.height pixels of the type of the stack.
+     */
+    public void readRegion(int n, Rectangle bounds, Object pixels) {
+        ByteBuffer buffer = plane(n);
+        int width = getWidth();
+        switch (fileType) {
+            case FileInfo.GRAY8: {
+                int start = buffer.position();
+                for (int y = 0; y < bounds.height; y++) {
+                    buffer.position(start + (bounds.y + y) * width + bounds.x);
+                    buffer.get((byte[]) pixels, y * bounds.width, bounds.width);
+                }
+                break;
+            }
+            case FileInfo.GRAY16_UNSIGNED: {
+                ShortBuffer shorts = buffer.asShortBuffer();
+                for (int y = 0; y < bounds.height; y++) {
+                    shorts.position((bounds.y + y) * width + bounds.x);
+                    shorts.get((short[]) pixels, y * bounds.width, bounds.width);
+                }
+                break;
+            }
+            default: {
+                FloatBuffer floats = buffer.asFloatBuffer();
+                for (int y = 0; y < bounds.height; y++) {
+                    floats.position((bounds.y + y) * width + bounds.x);
+                    floats.get((float[]) pixels, y * bounds.width, bounds.width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a plane (1-based). Each call copies the whole plane into a new processor, as ImageJ may modify it;
+     * use readRegion() to copy only a part of it.
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        ByteBuffer buffer = plane(n);
+        int width = getWidth();
+        int height = getHeight();
+        switch (fileType) {
+            case FileInfo.GRAY8: {
+                byte[] pixels = new byte[planeBytes];
+                buffer.get(pixels);
+                return new ByteProcessor(width, height, pixels);
+            }
+            case FileInfo.GRAY16_UNSIGNED: {
+                short[] pixels = new short[width * height];
+                buffer.asShortBuffer().get(pixels);
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            default: {
+                float[] pixels = new float[width * height];
+                buffer.asFloatBuffer().get(pixels);
+                return new FloatProcessor(width, height, pixels);
+            }
+        }
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return offsets.length;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class writes the results of a batch on background threads, so that tracking does not wait for the disk.
+ * Each job writes its files to temporary files next to their targets, which are then moved in place atomically:
+ * a result file is either the previous version or the complete new one, never a partial file.
+ * Failed jobs are retried a few times, and failures are recorded per image instead of stopping the batch.
+ * When the queue is full, the job is run by the submitting thread, which slows tracking down to the disk speed
+ * instead of piling up results in memory.
+ */
+public class ResultWriter implements AutoCloseable {
+
+    /** A job writing the result files of one image. */
+    public interface Job {
+        /**
+         * Writes the results.
+         * @param tempFiles Temporary files to write, one per target file, in the same order.
+         * @throws IOException If writing fails. The job is then retried.
+         */
+        void write(List<File> tempFiles) throws IOException;
+    }
+
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxAttempts;
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Constructor for ResultWriter.
+     * @param threads Number of writing threads.
+     * @param queueSize Number of jobs waiting to be written before the submitting thread writes itself.
+     * @param maxAttempts Number of attempts for each job before it is reported as failed.
+     */
+    public ResultWriter(int threads, int queueSize, int maxAttempts) {
+        AtomicInteger count = new AtomicInteger();
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.executor = new ThreadPoolExecutor(
+                Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> {
+                    Thread thread = new Thread(r, "SpermMotility-writer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Queues the writing of the results of an image.
+     * @param imageName Name of the image, used to report failures.
+     * @param targets Result files written by the job.
+     * @param job Job writing the results to temporary files.
+     * @return Completes with true once the results are in place, false if writing failed.
+     */
+    public Future<Boolean> submit(String imageName, List<File> targets, Job job) {
+        return executor.submit(() -> run(imageName, targets, job));
+    }
+
+    private boolean run(String imageName, List<File> targets, Job job) {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            List<File> tempFiles = new ArrayList<>();
+            try {
+                for (File target : targets) {
+                    tempFiles.add(new File(target.getParentFile(), "." + target.getName() + ".tmp"));
+                }
+                job.write(tempFiles);
+                for (int i = 0; i < targets.size(); i++) {
+                    moveInPlace(tempFiles.get(i).toPath(), targets.get(i).toPath());
+                }
+                IJ.log("Results saved for " + imageName + ".");
+                return true;
+            } catch (Exception e) {
+                deleteQuietly(tempFiles);
+                if (attempt == maxAttempts) {
+                    failures.put(imageName, e.getClass().getSimpleName() + ": " + e.getMessage());
+                    IJ.log("ERROR -- Could not save the results of " + imageName + " after " + attempt + " attempts: " + e.getMessage());
+                    return false;
+                }
+                IJ.log("Could not save the results of " + imageName + " (" + e.getMessage() + "), retrying.");
+                try {
+                    Thread.sleep(RETRY_DELAY_MS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    failures.put(imageName, "Interrupted: " + e.getMessage());
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    static void moveInPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(List<File> files) {
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException ignored) {
+                // left over temporary file, overwritten by the next attempt
+            }
+        }
+    }
+
+    /** Returns the images whose results could not be written, with the reason. */
+    public Map<String, String> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<>(failures);
+        }
+    }
+
+    /** Waits for all the queued results to be written. */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                IJ.log("Waiting for " + (executor.getQueue().size() + executor.getActiveCount()) + " results to be written...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ch.epfl.bio410.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class records, for each image of a results folder, the input it was analysed from (size and modification time
+ * of the file), the fingerprint of the config and the motility results, so that a rerun on the same folder
+ * only analyses the new or changed images.
+ * Each image has its own entry, manifest/name.properties in the results folder, written atomically once its results are saved.
+ * From the entries, the run writes summary.csv (one line per image, updated in place)
+ * and changes_date.csv, listing the images analysed or removed by the run and how their results moved.
+ */
+public class RunManifest {
+
+    public static final String FOLDER = "manifest";
+    public static final String SUMMARY_FILE = "summary.csv";
+
+    private static final String EXTENSION = ".properties";
+    private static final String[] ENTRY_COLUMNS = {"PATH", "SERIES", "STATUS", "REASON", "CONFIG"};
+    /** Relative difference below which a result has not moved, so that rounding and formatting are not reported. */
+    private static final double MOVED_TOLERANCE = 1e-6;
+
+    private final File resultsFolder;
+    private final Path folder;
+    private final Map<String, Properties> entries = new TreeMap<>();
+    /** Entries of the previous runs replaced or removed by this run, null for the new images. */
+    private final Map<String, Properties> previous = new LinkedHashMap<>();
+    private final Map<String, String> causes = new LinkedHashMap<>();
+
+    /**
+     * Reads the entries of a results folder.
+     * @param resultsFolder Folder of the results.
+     * @throws IOException If the entries cannot be read.
+     */
+    public RunManifest(File resultsFolder) throws IOException {
+        this.resultsFolder = resultsFolder;
+        this.folder = resultsFolder.toPath().resolve(FOLDER);
+        Files.createDirectories(folder);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + EXTENSION)) {
+            for (Path file : files) {
+                Properties entry = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    entry.load(in);
+                }
+                entries.put(entry.getProperty("IMAGE"), entry);
+            }
+        }
+    }
+
+    /**
+     * Describes the input of an image: file, series, size and modification time, and config fingerprint.
+     * @param source Image.
+     * @param configFingerprint Fingerprint of the config (see TrackingConfig.fingerprint()).
+     * @return The start of its manifest entry, the results are added by the caller.
+     */
+    public static Properties describe(ImageSource source, String configFingerprint) {
+        Properties entry = new Properties();
+        entry.setProperty("IMAGE", source.getName());
+        entry.setProperty("PATH", source.getPath().toString());
+        entry.setProperty("SERIES", String.valueOf(source.getSeries()));
+        entry.setProperty("CONFIG", configFingerprint);
+        try {
+            entry.setProperty("INPUT_SIZE", String.valueOf(Files.size(source.getPath())));
+            entry.setProperty("INPUT_MODIFIED", String.valueOf(Files.getLastModifiedTime(source.getPath()).toMillis()));
+        } catch (IOException e) {
+            // the image is then never up to date
+        }
+        return entry;
+    }
+
+    /**
+     * Tells why an image must be analysed, or null if its results are up to date:
+     * NEW, INPUT_CHANGED, CONFIG_CHANGED or FAILED (the previous analysis failed).
+     */
+    public String reasonToAnalyse(ImageSource source, String configFingerprint) {
+        Properties entry = entries.get(source.getName());
+        if (entry == null) {
+            return "NEW";
+        }
+        Properties current = describe(source, configFingerprint);
+        if (current.getProperty("INPUT_SIZE") == null
+                || !current.getProperty("INPUT_SIZE").equals(entry.getProperty("INPUT_SIZE"))
+                || !current.getProperty("INPUT_MODIFIED").equals(entry.getProperty("INPUT_MODIFIED"))
+                || !current.getProperty("PATH").equals(entry.getProperty("PATH"))) {
+            return "INPUT_CHANGED";
+        }
+        if (!configFingerprint.equals(entry.getProperty("CONFIG"))) {
+            return "CONFIG_CHANGED";
+        }
+        if (!"DONE".equals(entry.getProperty("STATUS"))) {
+            return "FAILED";
+        }
+        return null;
+    }
+
+    /**
+     * Records the entry of an analysed image, replacing the previous one.
+     * @param entry Entry started with describe(), with STATUS (DONE or FAILED), REASON and the results.
+     * @param cause Why the image was analysed (see reasonToAnalyse()), reported in the changes.
+     */
+    public void record(Properties entry, String cause) throws IOException {
+        String name = entry.getProperty("IMAGE");
+        if (!previous.containsKey(name)) {
+            previous.put(name, entries.get(name));
+        }
+        causes.put(name, cause);
+        entries.put(name, entry);
+        WorkQueue.writeAtomically(folder.resolve(WorkQueue.safeId(name) + EXTENSION), entry, "Sperm motility run manifest entry");
+    }
+
+    /**
+     * Removes the entries of the images that are no longer in the input folder.
+     * Their result files are left in place.
+     * @param sources Images of the input folder.
+     * @return Names of the removed images.
+     */
+    public List<String> removeMissing(Collection<ImageSource> sources) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (ImageSource source : sources) {
+            names.add(source.getName());
+        }
+        List<String> removed = new ArrayList<>();
+        for (String name : new ArrayList<>(entries.keySet())) {
+            if (!names.contains(name)) {
+                previous.put(name, entries.remove(name));
+                causes.put(name, "REMOVED");
+                Files.deleteIfExists(folder.resolve(WorkQueue.safeId(name) + EXTENSION));
+                removed.add(name);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Writes summary.csv in the results folder: one line per image, with its results.
+     * @param resultKeys Keys of the results, in the order of the columns.
+     * @return The file written.
+     */
+    public File writeSummary(List<String> resultKeys) throws IOException {
+        File file = new File(resultsFolder, SUMMARY_FILE);
+        Path temp = file.toPath().resolveSibling("." + SUMMARY_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("IMAGE," + String.join(",", ENTRY_COLUMNS) + "," + String.join(",", resultKeys) + "\n");
+            for (Properties entry : entries.values()) {
+                StringBuilder row = new StringBuilder(quote(entry.getProperty("IMAGE")));
+                for (String column : ENTRY_COLUMNS) {
+                    row.append(',').append(quote(entry.getProperty(column, "")));
+                }
+                for (String key : resultKeys) {
+                    row.append(',').append(entry.getProperty(key, ""));
+                }
+                writer.write(row + "\n");
+            }
+        }
+        ResultWriter.moveInPlace(temp, file.toPath());
+        return file;
+    }
+
+    /**
+     * Writes changes_date.csv in the results folder: the images analysed or removed by this run,
+     * with their previous and new results and whether the results moved.
+     * @param resultKeys Keys of the compared results.
+     * @return The file written, or null if no image was analysed or removed.
+     */
+    public File writeChanges(List<String> resultKeys) throws IOException {
+        if (causes.isEmpty()) {
+            return null;
+        }
+        String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        File file = new File(resultsFolder, "changes_" + date + ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            StringBuilder header = new StringBuilder("IMAGE,CAUSE,PREVIOUS_STATUS,STATUS,MOVED");
+            for (String key : resultKeys) {
+                header.append(",PREVIOUS_").append(key).append(',').append(key);
+            }
+            writer.write(header + "\n");
+            for (Map.Entry<String, String> change : causes.entrySet()) {
+                Properties before = previous.get(change.getKey());
+                Properties after = entries.get(change.getKey());
+                boolean moved = false;
+                StringBuilder values = new StringBuilder();
+                for (String key : resultKeys) {
+                    String oldValue = before != null ? before.getProperty(key, "") : "";
+                    String newValue = after != null ? after.getProperty(key, "") : "";
+                    moved |= moved(oldValue, newValue);
+                    values.append(',').append(oldValue).append(',').append(newValue);
+                }
+                writer.write(quote(change.getKey()) + "," + change.getValue()
+                        + "," + (before != null ? before.getProperty("STATUS", "") : "")
+                        + "," + (after != null ? after.getProperty("STATUS", "") : "")
+                        + "," + (moved ? 1 : 0) + values + "\n");
+            }
+        }
+        return file;
+    }
+
+    /** Compares two results numerically, within MOVED_TOLERANCE, or as text if they are not numbers. */
+    private static boolean moved(String oldValue, String newValue) {
+        if (utils.isNumeric(oldValue) && utils.isNumeric(newValue)) {
+            double a = Double.parseDouble(oldValue);
+            double b = Double.parseDouble(newValue);
+            if (Double.isNaN(a) || Double.isNaN(b)) {
+                return Double.isNaN(a) != Double.isNaN(b);
+            }
+            return Math.abs(a - b) > MOVED_TOLERANCE * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+        }
+        return !oldValue.equals(newValue);
+    }
+
+    /** Number of images analysed or removed by this run. */
+    public int countChanges() {
+        return causes.size();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,330 @@
+package ch.epfl.bio410.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Spatio-temporal index of the spots of an image, stored next to the results (spots_name.idx).
+ * The spots are bucketed in a grid of square cells per block of frames, and each bucket is stored contiguously,
+ * so range and nearest neighbour queries only read the directory and the buckets they need,
+ * instead of the whole spots table.
+ * The index is written once at export time (see write()) and queried with open().
+ */
+public class SpotIndex implements AutoCloseable {
+
+    /** Default size of the grid cells, in µm. */
+    public static final double DEFAULT_CELL_SIZE = 50;
+    /** Default number of frames per block. */
+    public static final int DEFAULT_FRAMES_PER_BLOCK = 50;
+
+    private static final int MAGIC = 0x53504958; // "SPIX"
+    private static final int VERSION = 1;
+    /** Bytes of a spot record: id, track id, frame, x, y, t. */
+    private static final int RECORD_BYTES = 4 + 4 + 4 + 8 + 8 + 8;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    /** One spot of the index. Positions in µm, time in seconds. */
+    public static class Entry {
+        public int spotId;
+        /** ID of the track of the spot, -1 if it is not in a track. */
+        public int trackId;
+        public int frame;
+        public double x;
+        public double y;
+        public double t;
+
+        public Entry(int spotId, int trackId, int frame, double x, double y, double t) {
+            this.spotId = spotId;
+            this.trackId = trackId;
+            this.frame = frame;
+            this.x = x;
+            this.y = y;
+            this.t = t;
+        }
+
+        @Override
+        public String toString() {
+            return "spot " + spotId + " (track " + trackId + ", frame " + frame + ", x=" + x + ", y=" + y + ")";
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final double cellSize;
+    private final int framesPerBlock;
+    private final double originX;
+    private final double originY;
+    private final int nCellsX;
+    private final int nCellsY;
+    private final int nBlocks;
+    /** Offset and number of records of each bucket, indexed by (block * nCellsY + cellY) * nCellsX + cellX. */
+    private final long[] bucketOffsets;
+    private final int[] bucketCounts;
+
+    /**
+     * Writes the index of a set of spots.
+     * @param entries Spots to index.
+     * @param target File to write.
+     * @param cellSize Size of the grid cells, in µm.
+     * @param framesPerBlock Number of frames per block.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(List<Entry> entries, File target, double cellSize, int framesPerBlock) throws IOException {
+        double originX = Double.MAX_VALUE;
+        double originY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        int maxFrame = 0;
+        for (Entry entry : entries) {
+            originX = Math.min(originX, entry.x);
+            originY = Math.min(originY, entry.y);
+            maxX = Math.max(maxX, entry.x);
+            maxY = Math.max(maxY, entry.y);
+            maxFrame = Math.max(maxFrame, entry.frame);
+        }
+        if (entries.isEmpty()) {
+            originX = originY = maxX = maxY = 0;
+        }
+        int nCellsX = (int) Math.floor((maxX - originX) / cellSize) + 1;
+        int nCellsY = (int) Math.floor((maxY - originY) / cellSize) + 1;
+        int nBlocks = maxFrame / framesPerBlock + 1;
+        int nBuckets = nBlocks * nCellsY * nCellsX;
+
+        // Sort the spots by bucket, then by frame inside a bucket
+        List<Entry> sorted = new ArrayList<>(entries);
+        int[] counts = new int[nBuckets];
+        final double ox = originX;
+        final double oy = originY;
+        Comparator<Entry> byBucket = Comparator.comparingInt(e -> bucket(e, ox, oy, cellSize, framesPerBlock, nCellsX, nCellsY));
+        sorted.sort(byBucket.thenComparingInt(e -> e.frame));
+        for (Entry entry : sorted) {
+            counts[bucket(entry, ox, oy, cellSize, framesPerBlock, nCellsX, nCellsY)]++;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(cellSize);
+            out.writeInt(framesPerBlock);
+            out.writeDouble(originX);
+            out.writeDouble(originY);
+            out.writeInt(nCellsX);
+            out.writeInt(nCellsY);
+            out.writeInt(nBlocks);
+            long offset = HEADER_BYTES + (long) nBuckets * 12;
+            for (int count : counts) {
+                out.writeLong(offset);
+                out.writeInt(count);
+                offset += (long) count * RECORD_BYTES;
+            }
+            for (Entry entry : sorted) {
+                out.writeInt(entry.spotId);
+                out.writeInt(entry.trackId);
+                out.writeInt(entry.frame);
+                out.writeDouble(entry.x);
+                out.writeDouble(entry.y);
+                out.writeDouble(entry.t);
+            }
+        }
+    }
+
+    private static int bucket(Entry e, double originX, double originY, double cellSize, int framesPerBlock, int nCellsX, int nCellsY) {
+        int cx = Math.min(nCellsX - 1, (int) Math.floor((e.x - originX) / cellSize));
+        int cy = Math.min(nCellsY - 1, (int) Math.floor((e.y - originY) / cellSize));
+        return ((e.frame / framesPerBlock) * nCellsY + cy) * nCellsX + cx;
+    }
+
+    /**
+     * Opens an index. Only its header and directory are read.
+     * @param source Index file written by write().
+     * @return The index, to be closed after use.
+     * @throws IOException If the file cannot be read or is not an index.
+     */
+    public static SpotIndex open(File source) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            return new SpotIndex(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private SpotIndex(RandomAccessFile file) throws IOException {
+        this.file = file;
+        if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+            throw new IOException("Not a spot index (or an unsupported version)");
+        }
+        cellSize = file.readDouble();
+        framesPerBlock = file.readInt();
+        originX = file.readDouble();
+        originY = file.readDouble();
+        nCellsX = file.readInt();
+        nCellsY = file.readInt();
+        nBlocks = file.readInt();
+        int nBuckets = nBlocks * nCellsY * nCellsX;
+        byte[] directory = new byte[nBuckets * 12];
+        file.readFully(directory);
+        ByteBuffer buffer = ByteBuffer.wrap(directory);
+        bucketOffsets = new long[nBuckets];
+        bucketCounts = new int[nBuckets];
+        for (int i = 0; i < nBuckets; i++) {
+            bucketOffsets[i] = buffer.getLong();
+            bucketCounts[i] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Returns the spots inside a rectangle and a range of frames.
+     * @param xMin Left of the rectangle, in µm.
+     * @param yMin Top of the rectangle, in µm.
+     * @param xMax Right of the rectangle, in µm.
+     * @param yMax Bottom of the rectangle, in µm.
+     * @param firstFrame First frame (0-based, as in TrackMate), inclusive.
+     * @param lastFrame Last frame, inclusive.
+     * @return The spots, by bucket and frame.
+     * @throws IOException If the index cannot be read.
+     */
+    public List<Entry> range(double xMin, double yMin, double xMax, double yMax, int firstFrame, int lastFrame) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        int cx0 = cellX(xMin);
+        int cx1 = cellX(xMax);
+        int cy0 = cellY(yMin);
+        int cy1 = cellY(yMax);
+        for (int block = blockOf(firstFrame); block <= blockOf(lastFrame); block++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    for (Entry entry : readBucket(block, cx, cy)) {
+                        if (entry.frame >= firstFrame && entry.frame <= lastFrame
+                                && entry.x >= xMin && entry.x <= xMax && entry.y >= yMin && entry.y <= yMax) {
+                            result.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the k spots nearest to a point in a range of frames.
+     * The grid is searched in rings of cells around the point, until no closer spot can be found.
+     * @param x Point, in µm.
+     * @param y Point, in µm.
+     * @param firstFrame First frame, inclusive.
+     * @param lastFrame Last frame, inclusive.
+     * @param k Number of spots.
+     * @return Up to k spots, nearest first. Empty if k is not positive.
+     * @throws IOException If the index cannot be read.
+     */
+    public List<Entry> nearest(double x, double y, int firstFrame, int lastFrame, int k) throws IOException {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        Comparator<Entry> byDistance = Comparator.comparingDouble(e -> (e.x - x) * (e.x - x) + (e.y - y) * (e.y - y));
+        PriorityQueue<Entry> best = new PriorityQueue<>(byDistance.reversed()); // farthest of the k best on top
+        int centerX = cellX(x);
+        int centerY = cellY(y);
+        int maxRing = Math.max(nCellsX, nCellsY);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // All the cells of the next ring are farther than the distance to the edge of this ring
+            if (best.size() == k && ring > 0) {
+                Entry farthest = best.peek();
+                double farthestDistance = Math.sqrt((farthest.x - x) * (farthest.x - x) + (farthest.y - y) * (farthest.y - y));
+                if (farthestDistance <= distanceToRingEdge(x, y, centerX, centerY, ring - 1)) {
+                    break;
+                }
+            }
+            for (int cy = centerY - ring; cy <= centerY + ring; cy++) {
+                for (int cx = centerX - ring; cx <= centerX + ring; cx++) {
+                    if (Math.max(Math.abs(cx - centerX), Math.abs(cy - centerY)) != ring
+                            || cx < 0 || cy < 0 || cx >= nCellsX || cy >= nCellsY) {
+                        continue;
+                    }
+                    for (int block = blockOf(firstFrame); block <= blockOf(lastFrame); block++) {
+                        for (Entry entry : readBucket(block, cx, cy)) {
+                            if (entry.frame < firstFrame || entry.frame > lastFrame) {
+                                continue;
+                            }
+                            best.add(entry);
+                            if (best.size() > k) {
+                                best.poll();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        List<Entry> result = new ArrayList<>(best);
+        result.sort(byDistance);
+        return result;
+    }
+
+    /**
+     * Returns the tracks passing within a distance of a point in a range of frames.
+     * @return The track IDs, sorted.
+     * @throws IOException If the index cannot be read.
+     */
+    public SortedSet<Integer> tracksNear(double x, double y, double radius, int firstFrame, int lastFrame) throws IOException {
+        SortedSet<Integer> tracks = new TreeSet<>();
+        for (Entry entry : range(x - radius, y - radius, x + radius, y + radius, firstFrame, lastFrame)) {
+            if (entry.trackId >= 0 && (entry.x - x) * (entry.x - x) + (entry.y - y) * (entry.y - y) <= radius * radius) {
+                tracks.add(entry.trackId);
+            }
+        }
+        return tracks;
+    }
+
+    /** Distance from a point to the outer edge of the square of cells of a ring around its cell. */
+    private double distanceToRingEdge(double x, double y, int centerX, int centerY, int ring) {
+        double left = x - (originX + (centerX - ring) * cellSize);
+        double right = originX + (centerX + ring + 1) * cellSize - x;
+        double top = y - (originY + (centerY - ring) * cellSize);
+        double bottom = originY + (centerY + ring + 1) * cellSize - y;
+        return Math.min(Math.min(left, right), Math.min(top, bottom));
+    }
+
+    private int cellX(double x) {
+        return Math.max(0, Math.min(nCellsX - 1, (int) Math.floor((x - originX) / cellSize)));
+    }
+
+    private int cellY(double y) {
+        return Math.max(0, Math.min(nCellsY - 1, (int) Math.floor((y - originY) / cellSize)));
+    }
+
+    private int blockOf(int frame) {
+        return Math.max(0, Math.min(nBlocks - 1, frame / framesPerBlock));
+    }
+
+    private synchronized List<Entry> readBucket(int block, int cx, int cy) throws IOException {
+        int bucket = (block * nCellsY + cy) * nCellsX + cx;
+        int count = bucketCounts[bucket];
+        List<Entry> entries = new ArrayList<>(count);
+        if (count == 0) {
+            return entries;
+        }
+        byte[] bytes = new byte[count * RECORD_BYTES];
+        file.seek(bucketOffsets[bucket]);
+        file.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble()));
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -2,30 +2,77 @@ package ch.epfl.bio410.utils;
 
 import ij.IJ;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
 import java.io.*;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.TreeSet;
 
 public class TrackingConfig {
 
     public double detector_radius;
     public double detector_threshold;
     public boolean detector_median_filter;
+    public boolean detector_pyramid;
     public double tracker_linking_max_distance;
     public double tracker_gap_closing_max_distance;
     public int tracker_max_frame_gap;
+    // Drift and flow compensation (between detection and linking, see DriftCorrection)
+    public boolean drift_correction;
+    public double drift_search_distance;
     public double track_duration_min;
     public double min_mean_speed;
     public double min_straight_speed;
     public double min_linearity;
     public int subtraction_radius;
+    // Track classification (WHO grades and hyperactivation, see MotilityClassifier)
+    public int vap_window;
+    public double who_immotile_max_vcl;
+    public double who_progressive_min_vap;
+    public double who_progressive_min_str;
+    public double hyper_min_vcl;
+    public double hyper_max_lin;
+    public double hyper_min_alh;
+    public double confidence_min_duration;
+    // Analysis region and time window (applied before preprocessing)
+    public int roi_x;
+    public int roi_y;
+    public int roi_width;
+    public int roi_height;
+    public String roi_path;
+    public boolean auto_crop;
+    public int first_frame;
+    public int max_frames;
+    public double max_duration;
+    // Triage (cheap check of each video before the full pipeline)
+    public boolean triage_enabled;
+    public int triage_sampled_frames;
+    public double triage_min_spots;
+    public double triage_max_spots;
+    public double triage_min_sharpness;
+    public String triage_overcrowded_config;
+    public String triage_out_of_focus_config;
+    // Input discovery
+    public String input_patterns;
+    public boolean input_recursive;
+    // Batch
+    public int prefetch_depth;
+    public int prefetch_memory_mb;
+    public int writer_threads;
+    public int writer_queue_size;
+    public int writer_max_attempts;
+    public int image_timeout;
 
-    public String configPath = null;
-    public String configName = null;
+    public transient String configPath = null;
+    public transient String configName = null;
 
     // Default constructor
     /**
@@ -38,6 +85,7 @@ public class TrackingConfig {
      * - tracker_gap_closing_max_distance = 1.0
      * - tracker_max_frame_gap = 4
      * - track_duration_min = 8.0
+     * The whole frame and all the frames are analysed by default.
      */
     public TrackingConfig() {
         this.subtraction_radius = 50;
@@ -47,10 +95,27 @@ public class TrackingConfig {
         this.tracker_linking_max_distance = 15d;
         this.tracker_gap_closing_max_distance = 15d;
         this.tracker_max_frame_gap = 5;
+        this.drift_search_distance = 30d;
         this.track_duration_min = 0.3d;
         this.min_mean_speed = 5.0d;
         this.min_straight_speed = 5.0d;
         this.min_linearity = 0.1d;
+        this.vap_window = 5;
+        this.who_immotile_max_vcl = 5.0d;
+        this.who_progressive_min_vap = 25.0d;
+        this.who_progressive_min_str = 0.8d;
+        this.hyper_min_vcl = 150.0d;
+        this.hyper_max_lin = 0.5d;
+        this.hyper_min_alh = 7.0d;
+        this.confidence_min_duration = 1.0d;
+        this.first_frame = 1;
+        this.triage_sampled_frames = 5;
+        this.triage_min_spots = 1.0d;
+        this.input_patterns = InputDiscovery.DEFAULT_PATTERNS;
+        this.prefetch_depth = 1;
+        this.writer_threads = 2;
+        this.writer_queue_size = 8;
+        this.writer_max_attempts = 3;
     }
     /**
      * Constructor for TrackingConfig.
@@ -79,6 +144,7 @@ public class TrackingConfig {
             double min_straight_speed,
             double min_linearity
     ) {
+        this(); // start from the defaults of the other parameters
         this.subtraction_radius = subtraction_radius;
         this.detector_radius = detector_radius;
         this.detector_threshold = detector_threshold;
@@ -92,34 +158,315 @@ public class TrackingConfig {
         this.min_linearity = min_linearity;
     }
     /**
-     * Create a TrackingConfig object from a properties file.
+     * Create a TrackingConfig object from a preset of the resources.
+     * Presets are read once, see ConfigRegistry.
      * @param filename Name of the file to load from resources.
-     * @return TrackingConfig object with the loaded parameters.
+     * @return TrackingConfig object with the loaded parameters, the defaults if the preset does not exist.
      */
     public static TrackingConfig createFromPropertiesFile(String filename) {
-        String config_path = accessConfigPathFromResources(filename);
-        TrackingConfig config = new TrackingConfig(0, 0, 0, false, 0, 0, 0, 0, 0,0,0);
-        if (config_path != null) {
-            config.loadFromPropertiesFile(config_path);
+        TrackingConfig config = ConfigRegistry.get(filename);
+        if (config == null) {
+            System.out.println("Resource not found: configs/" + filename);
+            config = new TrackingConfig();
+            config.configName = filename;
         }
-        config.configName = filename;
-        config.configPath = config_path;
         return config;
     }
     /**
-     * Create a TrackingConfig object from a properties file.
+     * Create a TrackingConfig object from a properties or JSON file.
+     * Parameters missing from the file keep their default values.
      * @param filename File to load from.
-     * @return TrackingConfig object with the loaded parameters.
+     * @return TrackingConfig object with the loaded parameters, the defaults if the file cannot be read.
      */
     public static TrackingConfig createFromPropertiesFile(File filename) {
-        TrackingConfig config = new TrackingConfig(0, 0, 0, false, 0, 0, 0, 0, 0, 0, 0);
-        if (filename != null) {
-            config.loadFromPropertiesFile(filename.getAbsolutePath());
+        try {
+            return load(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            TrackingConfig config = new TrackingConfig();
+            config.configName = filename.getName();
+            config.configPath = filename.getAbsolutePath();
+            return config;
+        }
+    }
+    /**
+     * Load a config from a file, in properties format or in JSON format if the name ends with .json.
+     * Parameters missing from the file keep their default values.
+     * @param file File to load from.
+     * @return TrackingConfig object with the loaded parameters.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a parameter has an invalid value.
+     */
+    public static TrackingConfig load(File file) throws IOException {
+        TrackingConfig config;
+        if (file.getName().toLowerCase().endsWith(".json")) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                config = new Gson().fromJson(reader, TrackingConfig.class);
+            } catch (JsonParseException e) {
+                throw new IllegalArgumentException("Invalid JSON config " + file + ": " + e.getMessage(), e);
+            }
+            if (config == null) {
+                config = new TrackingConfig();
+            }
+        } else {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                properties.load(in);
+            }
+            config = new TrackingConfig();
+            config.applyProperties(properties);
         }
-        config.configName = filename.getName();
-        config.configPath = filename.getAbsolutePath();
+        config.validate();
+        config.configName = file.getName();
+        config.configPath = file.getAbsolutePath();
         return config;
     }
+    /**
+     * Save the config to a file, in properties format or in JSON format if the name ends with .json.
+     * All the parameters are saved, so that loading the file gives back the same config.
+     * @param file File to save to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".json")) {
+            try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+            }
+        } else {
+            try (OutputStream out = Files.newOutputStream(file.toPath())) {
+                toProperties().store(out, "Sperm motility config " + fingerprint());
+            }
+        }
+    }
+
+    /**
+     * Write all the parameters into properties, with upper case keys (e.g. DETECTOR_RADIUS).
+     * @return The properties.
+     */
+    public Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("SUBTRACTION_RADIUS", String.valueOf(subtraction_radius));
+        p.setProperty("DETECTOR_RADIUS", String.valueOf(detector_radius));
+        p.setProperty("DETECTOR_THRESHOLD", String.valueOf(detector_threshold));
+        p.setProperty("DETECTOR_MEDIAN_FILTER", String.valueOf(detector_median_filter));
+        p.setProperty("DETECTOR_PYRAMID", String.valueOf(detector_pyramid));
+        p.setProperty("TRACKER_LINKING_MAX_DISTANCE", String.valueOf(tracker_linking_max_distance));
+        p.setProperty("TRACKER_GAP_CLOSING_MAX_DISTANCE", String.valueOf(tracker_gap_closing_max_distance));
+        p.setProperty("TRACKER_MAX_FRAME_GAP", String.valueOf(tracker_max_frame_gap));
+        p.setProperty("DRIFT_CORRECTION", String.valueOf(drift_correction));
+        p.setProperty("DRIFT_SEARCH_DISTANCE", String.valueOf(drift_search_distance));
+        p.setProperty("TRACK_DURATION_MIN", String.valueOf(track_duration_min));
+        p.setProperty("MIN_MEAN_SPEED", String.valueOf(min_mean_speed));
+        p.setProperty("MIN_STRAIGHT_SPEED", String.valueOf(min_straight_speed));
+        p.setProperty("MIN_LINEARITY", String.valueOf(min_linearity));
+        p.setProperty("VAP_WINDOW", String.valueOf(vap_window));
+        p.setProperty("WHO_IMMOTILE_MAX_VCL", String.valueOf(who_immotile_max_vcl));
+        p.setProperty("WHO_PROGRESSIVE_MIN_VAP", String.valueOf(who_progressive_min_vap));
+        p.setProperty("WHO_PROGRESSIVE_MIN_STR", String.valueOf(who_progressive_min_str));
+        p.setProperty("HYPER_MIN_VCL", String.valueOf(hyper_min_vcl));
+        p.setProperty("HYPER_MAX_LIN", String.valueOf(hyper_max_lin));
+        p.setProperty("HYPER_MIN_ALH", String.valueOf(hyper_min_alh));
+        p.setProperty("CONFIDENCE_MIN_DURATION", String.valueOf(confidence_min_duration));
+        p.setProperty("ROI_X", String.valueOf(roi_x));
+        p.setProperty("ROI_Y", String.valueOf(roi_y));
+        p.setProperty("ROI_WIDTH", String.valueOf(roi_width));
+        p.setProperty("ROI_HEIGHT", String.valueOf(roi_height));
+        p.setProperty("ROI_PATH", roi_path == null ? "" : roi_path);
+        p.setProperty("AUTO_CROP", String.valueOf(auto_crop));
+        p.setProperty("FIRST_FRAME", String.valueOf(first_frame));
+        p.setProperty("MAX_FRAMES", String.valueOf(max_frames));
+        p.setProperty("MAX_DURATION", String.valueOf(max_duration));
+        p.setProperty("TRIAGE_ENABLED", String.valueOf(triage_enabled));
+        p.setProperty("TRIAGE_SAMPLED_FRAMES", String.valueOf(triage_sampled_frames));
+        p.setProperty("TRIAGE_MIN_SPOTS", String.valueOf(triage_min_spots));
+        p.setProperty("TRIAGE_MAX_SPOTS", String.valueOf(triage_max_spots));
+        p.setProperty("TRIAGE_MIN_SHARPNESS", String.valueOf(triage_min_sharpness));
+        p.setProperty("TRIAGE_OVERCROWDED_CONFIG", triage_overcrowded_config == null ? "" : triage_overcrowded_config);
+        p.setProperty("TRIAGE_OUT_OF_FOCUS_CONFIG", triage_out_of_focus_config == null ? "" : triage_out_of_focus_config);
+        p.setProperty("INPUT_PATTERNS", input_patterns == null ? "" : input_patterns);
+        p.setProperty("INPUT_RECURSIVE", String.valueOf(input_recursive));
+        p.setProperty("PREFETCH_DEPTH", String.valueOf(prefetch_depth));
+        p.setProperty("PREFETCH_MEMORY_MB", String.valueOf(prefetch_memory_mb));
+        p.setProperty("WRITER_THREADS", String.valueOf(writer_threads));
+        p.setProperty("WRITER_QUEUE_SIZE", String.valueOf(writer_queue_size));
+        p.setProperty("WRITER_MAX_ATTEMPTS", String.valueOf(writer_max_attempts));
+        p.setProperty("IMAGE_TIMEOUT", String.valueOf(image_timeout));
+        return p;
+    }
+
+    /**
+     * Set the parameters present in the properties. Missing parameters are left unchanged.
+     * @param p Properties with upper case keys, as written by toProperties().
+     * @throws IllegalArgumentException If a value cannot be parsed.
+     */
+    public void applyProperties(Properties p) {
+        subtraction_radius = getInt(p, "SUBTRACTION_RADIUS", subtraction_radius);
+        detector_radius = getDouble(p, "DETECTOR_RADIUS", detector_radius);
+        detector_threshold = getDouble(p, "DETECTOR_THRESHOLD", detector_threshold);
+        detector_median_filter = getBoolean(p, "DETECTOR_MEDIAN_FILTER", detector_median_filter);
+        detector_pyramid = getBoolean(p, "DETECTOR_PYRAMID", detector_pyramid);
+        tracker_linking_max_distance = getDouble(p, "TRACKER_LINKING_MAX_DISTANCE", tracker_linking_max_distance);
+        tracker_gap_closing_max_distance = getDouble(p, "TRACKER_GAP_CLOSING_MAX_DISTANCE", tracker_gap_closing_max_distance);
+        tracker_max_frame_gap = getInt(p, "TRACKER_MAX_FRAME_GAP", tracker_max_frame_gap);
+        drift_correction = getBoolean(p, "DRIFT_CORRECTION", drift_correction);
+        drift_search_distance = getDouble(p, "DRIFT_SEARCH_DISTANCE", drift_search_distance);
+        track_duration_min = getDouble(p, "TRACK_DURATION_MIN", track_duration_min);
+        min_mean_speed = getDouble(p, "MIN_MEAN_SPEED", min_mean_speed);
+        min_straight_speed = getDouble(p, "MIN_STRAIGHT_SPEED", min_straight_speed);
+        min_linearity = getDouble(p, "MIN_LINEARITY", min_linearity);
+        vap_window = getInt(p, "VAP_WINDOW", vap_window);
+        who_immotile_max_vcl = getDouble(p, "WHO_IMMOTILE_MAX_VCL", who_immotile_max_vcl);
+        who_progressive_min_vap = getDouble(p, "WHO_PROGRESSIVE_MIN_VAP", who_progressive_min_vap);
+        who_progressive_min_str = getDouble(p, "WHO_PROGRESSIVE_MIN_STR", who_progressive_min_str);
+        hyper_min_vcl = getDouble(p, "HYPER_MIN_VCL", hyper_min_vcl);
+        hyper_max_lin = getDouble(p, "HYPER_MAX_LIN", hyper_max_lin);
+        hyper_min_alh = getDouble(p, "HYPER_MIN_ALH", hyper_min_alh);
+        confidence_min_duration = getDouble(p, "CONFIDENCE_MIN_DURATION", confidence_min_duration);
+        roi_x = getInt(p, "ROI_X", roi_x);
+        roi_y = getInt(p, "ROI_Y", roi_y);
+        roi_width = getInt(p, "ROI_WIDTH", roi_width);
+        roi_height = getInt(p, "ROI_HEIGHT", roi_height);
+        roi_path = getPath(p, "ROI_PATH", roi_path);
+        auto_crop = getBoolean(p, "AUTO_CROP", auto_crop);
+        first_frame = getInt(p, "FIRST_FRAME", first_frame);
+        max_frames = getInt(p, "MAX_FRAMES", max_frames);
+        max_duration = getDouble(p, "MAX_DURATION", max_duration);
+        triage_enabled = getBoolean(p, "TRIAGE_ENABLED", triage_enabled);
+        triage_sampled_frames = getInt(p, "TRIAGE_SAMPLED_FRAMES", triage_sampled_frames);
+        triage_min_spots = getDouble(p, "TRIAGE_MIN_SPOTS", triage_min_spots);
+        triage_max_spots = getDouble(p, "TRIAGE_MAX_SPOTS", triage_max_spots);
+        triage_min_sharpness = getDouble(p, "TRIAGE_MIN_SHARPNESS", triage_min_sharpness);
+        triage_overcrowded_config = getPath(p, "TRIAGE_OVERCROWDED_CONFIG", triage_overcrowded_config);
+        triage_out_of_focus_config = getPath(p, "TRIAGE_OUT_OF_FOCUS_CONFIG", triage_out_of_focus_config);
+        input_patterns = p.getProperty("INPUT_PATTERNS", input_patterns);
+        input_recursive = getBoolean(p, "INPUT_RECURSIVE", input_recursive);
+        prefetch_depth = getInt(p, "PREFETCH_DEPTH", prefetch_depth);
+        prefetch_memory_mb = getInt(p, "PREFETCH_MEMORY_MB", prefetch_memory_mb);
+        writer_threads = getInt(p, "WRITER_THREADS", writer_threads);
+        writer_queue_size = getInt(p, "WRITER_QUEUE_SIZE", writer_queue_size);
+        writer_max_attempts = getInt(p, "WRITER_MAX_ATTEMPTS", writer_max_attempts);
+        image_timeout = getInt(p, "IMAGE_TIMEOUT", image_timeout);
+    }
+
+    /** Reads an optional path or preset name, saved empty when not set (see toProperties). */
+    private static String getPath(Properties p, String key, String defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.trim().isEmpty() ? null : value;
+    }
+
+    private static int getInt(Properties p, String key, int defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be an integer, got '" + value + "'");
+        }
+    }
+
+    private static double getDouble(Properties p, String key, double defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, got '" + value + "'");
+        }
+    }
+
+    private static boolean getBoolean(Properties p, String key, boolean defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        value = value.trim();
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException(key + " must be true or false, got '" + value + "'");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Check that the parameters are usable.
+     * @throws IllegalArgumentException Listing all the invalid parameters.
+     */
+    public void validate() {
+        List<String> errors = new ArrayList<>();
+        if (subtraction_radius < 0) errors.add("SUBTRACTION_RADIUS must be >= 0");
+        if (!(detector_radius > 0)) errors.add("DETECTOR_RADIUS must be > 0");
+        if (Double.isNaN(detector_threshold) || detector_threshold < 0) errors.add("DETECTOR_THRESHOLD must be >= 0");
+        if (!(tracker_linking_max_distance > 0)) errors.add("TRACKER_LINKING_MAX_DISTANCE must be > 0");
+        if (!(tracker_gap_closing_max_distance >= 0)) errors.add("TRACKER_GAP_CLOSING_MAX_DISTANCE must be >= 0");
+        if (tracker_max_frame_gap < 0) errors.add("TRACKER_MAX_FRAME_GAP must be >= 0");
+        if (!(drift_search_distance > 0)) errors.add("DRIFT_SEARCH_DISTANCE must be > 0");
+        if (!(track_duration_min >= 0)) errors.add("TRACK_DURATION_MIN must be >= 0");
+        if (vap_window < 1) errors.add("VAP_WINDOW must be >= 1");
+        if (!(who_immotile_max_vcl >= 0) || !(who_progressive_min_vap >= 0) || !(who_progressive_min_str >= 0)) errors.add("WHO_* thresholds must be >= 0");
+        if (!(hyper_min_vcl >= 0) || !(hyper_max_lin >= 0) || !(hyper_min_alh >= 0)) errors.add("HYPER_* thresholds must be >= 0");
+        if (!(confidence_min_duration >= 0)) errors.add("CONFIDENCE_MIN_DURATION must be >= 0");
+        if (roi_width < 0 || roi_height < 0) errors.add("ROI_WIDTH and ROI_HEIGHT must be >= 0");
+        if (first_frame < 1) errors.add("FIRST_FRAME must be >= 1");
+        if (max_frames < 0) errors.add("MAX_FRAMES must be >= 0");
+        if (!(max_duration >= 0)) errors.add("MAX_DURATION must be >= 0");
+        if (triage_sampled_frames < 1) errors.add("TRIAGE_SAMPLED_FRAMES must be >= 1");
+        if (!(triage_min_spots >= 0) || !(triage_max_spots >= 0) || !(triage_min_sharpness >= 0)) errors.add("TRIAGE_MIN_SPOTS, TRIAGE_MAX_SPOTS and TRIAGE_MIN_SHARPNESS must be >= 0");
+        if (prefetch_depth < 0 || prefetch_memory_mb < 0) errors.add("PREFETCH_DEPTH and PREFETCH_MEMORY_MB must be >= 0");
+        if (writer_threads < 1 || writer_queue_size < 1 || writer_max_attempts < 1) errors.add("WRITER_THREADS, WRITER_QUEUE_SIZE and WRITER_MAX_ATTEMPTS must be >= 1");
+        if (image_timeout < 0) errors.add("IMAGE_TIMEOUT must be >= 0");
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid config: " + String.join(", ", errors));
+        }
+    }
+
+    /**
+     * Returns a stable hash of the parameters that change the results, to be used as cache or resume key.
+     * Batch parameters (prefetching, writing, timeout, input discovery) do not change the results
+     * of an image and are left out, so are the config name and path.
+     * @return The first 16 hexadecimal characters of the SHA-256 of the parameters.
+     */
+    public String fingerprint() {
+        Properties p = toProperties();
+        for (String key : BATCH_KEYS) {
+            p.remove(key);
+        }
+        StringBuilder canonical = new StringBuilder();
+        for (String key : new TreeSet<>(p.stringPropertyNames())) {
+            canonical.append(key).append('=').append(p.getProperty(key)).append('\n');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // every JVM provides it
+        }
+    }
+
+    /** Keys of the parameters that do not change the results, left out of the fingerprint. */
+    private static final String[] BATCH_KEYS = {
+            "INPUT_PATTERNS", "INPUT_RECURSIVE", "PREFETCH_DEPTH", "PREFETCH_MEMORY_MB",
+            "WRITER_THREADS", "WRITER_QUEUE_SIZE", "WRITER_MAX_ATTEMPTS", "IMAGE_TIMEOUT"
+    };
+
+    /** Returns an independent copy of this config. */
+    public TrackingConfig copy() {
+        TrackingConfig copy = new TrackingConfig();
+        copy.applyProperties(toProperties());
+        copy.configName = this.configName;
+        copy.configPath = this.configPath;
+        return copy;
+    }
+
     /** Backup function to be used if loading directly from resources fails.
      * This instead copies the file to the user's Downloads folder for loading.
      * See ResourcesFolder.java for the implementation of copyFileFromResources.
@@ -165,76 +512,47 @@ public class TrackingConfig {
             IJ.log("- Detector radius : " + this.detector_radius + " µm");
             IJ.log("- Detector quality threshold : " + this.detector_threshold);
             IJ.log("- Detector using median filter : " + this.detector_median_filter);
+            if (this.detector_pyramid) {
+                IJ.log("- Detector on downsampled frames (pyramid)");
+            }
             IJ.log("- Tracker max distance for linking : " + this.tracker_linking_max_distance + " µm");
             IJ.log("- Tracker gap closing max distance : " + this.tracker_gap_closing_max_distance + " µm");
             IJ.log("- Tracker max frame gap for closing : " + this.tracker_max_frame_gap);
+            if (this.drift_correction) {
+                IJ.log("- Drift correction : search distance " + this.drift_search_distance + " µm");
+            }
             IJ.log("- Track minimum duration filter : " + this.track_duration_min + " seconds");
             IJ.log("- Track minimum mean speed : " + this.min_mean_speed + " µm/s");
             IJ.log("- Track minimum straight line speed : " + this.min_straight_speed + " µm/s");
             IJ.log("- Track minimum linearity : " + this.min_linearity);
+            IJ.log("- WHO grades : immotile if VCL < " + this.who_immotile_max_vcl + " µm/s, progressive if VAP >= "
+                    + this.who_progressive_min_vap + " µm/s and STR >= " + this.who_progressive_min_str);
+            IJ.log("- Hyperactivated : VCL >= " + this.hyper_min_vcl + " µm/s, LIN <= " + this.hyper_max_lin + ", ALH >= " + this.hyper_min_alh + " µm");
+            if (this.roi_path != null && !this.roi_path.isEmpty()) {
+                IJ.log("- Analysis region : ROI file " + this.roi_path);
+            } else if (this.roi_width > 0 && this.roi_height > 0) {
+                IJ.log("- Analysis region : x=" + this.roi_x + " y=" + this.roi_y + " w=" + this.roi_width + " h=" + this.roi_height + " pxl");
+            } else {
+                IJ.log("- Analysis region : " + (this.auto_crop ? "automatic crop" : "whole frame"));
+            }
+            IJ.log("- First analysed frame : " + this.first_frame);
+            IJ.log("- Max analysed frames : " + (this.max_frames > 0 ? String.valueOf(this.max_frames) : "all"));
+            IJ.log("- Max analysed duration : " + (this.max_duration > 0 ? this.max_duration + " seconds" : "all"));
+            if (this.triage_enabled) {
+                IJ.log("- Triage : " + this.triage_sampled_frames + " frames, min " + this.triage_min_spots + " spots per frame"
+                        + (this.triage_max_spots > 0 ? ", max " + this.triage_max_spots : "")
+                        + (this.triage_min_sharpness > 0 ? ", min sharpness " + this.triage_min_sharpness : ""));
+            }
         }
         IJ.log("----- End of config");
     }
 
     /**
-     * Access a file from the resources folder.
-     * @param filename Name of the config file to load from resources.
-     * @return Path to the file.
+     * List the names of the config presets available in the resources.
+     * Presets are listed once, see ConfigRegistry.
+     * @return Names of the presets (e.g. "default.properties").
      */
-    private static String accessConfigPathFromResources(String filename) {
-        try {
-            String path = "configs/" + filename; // system file separator is not applicable here
-            URL resourceUrl = TrackingConfig.class.getClassLoader().getResource(path);
-            if (resourceUrl != null) {
-                String real_path = resourceUrl.getPath();
-                // if the path starts with a '/', remove it
-                if (real_path.charAt(0) == '/') {
-                    real_path = real_path.substring(1);
-                }
-                return real_path;
-            } else {
-                System.out.println("Resource not found: " + path);
-                return null;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
     public static List<String> listAvailableConfigs() {
-        try {
-            List<String> configPaths = new ArrayList<>();
-            List<String> filePaths = utils.listFilesInResourceFolder("configs");
-            System.out.println(filePaths);
-            if (filePaths == null) {
-                return null;
-            }
-            for (String filepath : filePaths) {
-                File file = new File(filepath);
-                if (file.isFile() && file.getName().endsWith(".properties")) {
-                    configPaths.add(file.getName());
-                }
-            }
-            return configPaths;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-    private void loadFromPropertiesFile(String filePath) {
-        try {
-            Properties properties = new Properties();
-            properties.load(Files.newInputStream(Paths.get(filePath)));
-
-            this.detector_radius = Double.parseDouble(properties.getProperty("DETECTOR_RADIUS"));
-            this.detector_threshold = Double.parseDouble(properties.getProperty("DETECTOR_THRESHOLD"));
-            this.detector_median_filter = Boolean.parseBoolean(properties.getProperty("DETECTOR_MEDIAN_FILTER"));
-            this.tracker_linking_max_distance = Double.parseDouble(properties.getProperty("TRACKER_LINKING_MAX_DISTANCE"));
-            this.tracker_gap_closing_max_distance = Double.parseDouble(properties.getProperty("TRACKER_GAP_CLOSING_MAX_DISTANCE"));
-            this.tracker_max_frame_gap = Integer.parseInt(properties.getProperty("TRACKER_MAX_FRAME_GAP"));
-            this.track_duration_min = Double.parseDouble(properties.getProperty("TRACK_DURATION_MIN"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return ConfigRegistry.names();
     }
 }
@@ -0,0 +1,239 @@
+package ch.epfl.bio410.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * This class is a work queue living in a folder of a shared (POSIX) filesystem, without any broker.
+ * Each work item is a small properties file that moves between four subfolders:
+ * - todo/     items waiting to be processed,
+ * - claimed/  items being processed, renamed "id@node.job" by the node that claimed them,
+ * - done/     manifest entries of the processed items,
+ * - failed/   manifest entries of the items that could not be processed.
+ * Claiming is an atomic rename from todo/ to claimed/, so an item is claimed by exactly one node.
+ * A node holding an item keeps touching it (lease); items whose lease expired are put back in todo/.
+ */
+public class WorkQueue {
+
+    public static final String TODO = "todo";
+    public static final String CLAIMED = "claimed";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String CONFIG_FILE = "config.properties";
+
+    private static final String JOB_EXTENSION = ".job";
+    private static final String MANIFEST_EXTENSION = ".properties";
+
+    /** A claimed work item. */
+    public static class Claim {
+        public final String id;
+        public final Path file;
+        public final Properties job;
+
+        Claim(String id, Path file, Properties job) {
+            this.id = id;
+            this.file = file;
+            this.job = job;
+        }
+    }
+
+    private final Path root;
+
+    public WorkQueue(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /** Creates the queue folders if needed. */
+    public void init() throws IOException {
+        for (String folder : new String[]{TODO, CLAIMED, DONE, FAILED}) {
+            Files.createDirectories(root.resolve(folder));
+        }
+    }
+
+    /**
+     * Adds a work item. Items already queued, claimed or processed are left unchanged.
+     * @param id Unique id of the item (used as file name).
+     * @param job Description of the work item.
+     * @return true if the item was added.
+     */
+    public boolean enqueue(String id, Properties job) throws IOException {
+        String fileName = safeId(id) + JOB_EXTENSION;
+        if (Files.exists(root.resolve(DONE).resolve(safeId(id) + MANIFEST_EXTENSION))
+                || Files.exists(root.resolve(TODO).resolve(fileName))
+                || !findClaimed(safeId(id)).isEmpty()) {
+            return false;
+        }
+        writeAtomically(root.resolve(TODO).resolve(fileName), job, "Sperm motility work item");
+        return true;
+    }
+
+    /**
+     * Claims the next work item for this node.
+     * @param node Name of the node claiming (e.g. host name and process id).
+     * @return The claimed item, or null if no item is left.
+     */
+    public Claim claim(String node) throws IOException {
+        for (Path todo : list(TODO, JOB_EXTENSION)) {
+            String id = stripExtension(todo, JOB_EXTENSION);
+            Path claimed = root.resolve(CLAIMED).resolve(id + "@" + safeId(node) + JOB_EXTENSION);
+            try {
+                Files.move(todo, claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                continue; // claimed by another node in the meantime
+            } catch (AtomicMoveNotSupportedException e) {
+                throw new IOException("The queue folder must support atomic renames: " + root, e);
+            }
+            renewLease(claimed);
+            return new Claim(id, claimed, read(claimed));
+        }
+        return null;
+    }
+
+    /** Renews the lease of a claimed item. Returns false if the item is no longer held. */
+    public boolean renewLease(Path claimedFile) {
+        try {
+            Files.setLastModifiedTime(claimedFile, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records the manifest entry of a claimed item and removes it from the claimed items.
+     * @param claim Claimed item.
+     * @param success true to record it in done/, false in failed/.
+     * @param manifest Manifest entry (job description, node, timings, results...).
+     */
+    public void complete(Claim claim, boolean success, Properties manifest) throws IOException {
+        Path target = root.resolve(success ? DONE : FAILED).resolve(claim.id + MANIFEST_EXTENSION);
+        writeAtomically(target, manifest, "Sperm motility manifest entry");
+        Files.deleteIfExists(claim.file);
+        if (success) {
+            // a previous failure of this item is superseded
+            Files.deleteIfExists(root.resolve(FAILED).resolve(claim.id + MANIFEST_EXTENSION));
+        }
+    }
+
+    /**
+     * Puts back in todo/ the claimed items whose lease expired (their node died or hung).
+     * @param leaseMillis Duration after which a lease that was not renewed expires.
+     * @return Number of items requeued.
+     */
+    public int requeueExpired(long leaseMillis) throws IOException {
+        int requeued = 0;
+        long now = System.currentTimeMillis();
+        for (Path claimed : list(CLAIMED, JOB_EXTENSION)) {
+            try {
+                if (now - Files.getLastModifiedTime(claimed).toMillis() < leaseMillis) {
+                    continue;
+                }
+                String id = stripExtension(claimed, JOB_EXTENSION);
+                id = id.substring(0, id.lastIndexOf('@'));
+                Files.move(claimed, root.resolve(TODO).resolve(id + JOB_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+                requeued++;
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // completed or requeued by another node in the meantime
+            }
+        }
+        return requeued;
+    }
+
+    /** Number of items in a queue folder (TODO, CLAIMED, DONE or FAILED). */
+    public int count(String folder) throws IOException {
+        return list(folder, DONE.equals(folder) || FAILED.equals(folder) ? MANIFEST_EXTENSION : JOB_EXTENSION).size();
+    }
+
+    /** Reads all the manifest entries of a queue folder (DONE or FAILED). */
+    public List<Properties> readManifests(String folder) throws IOException {
+        List<Properties> manifests = new ArrayList<>();
+        for (Path file : list(folder, MANIFEST_EXTENSION)) {
+            try {
+                manifests.add(read(file));
+            } catch (NoSuchFileException e) {
+                // removed in the meantime
+            }
+        }
+        return manifests;
+    }
+
+    /** Returns the claimed files, to show which node holds which item. */
+    public List<Path> listClaimed() throws IOException {
+        return list(CLAIMED, JOB_EXTENSION);
+    }
+
+    private List<Path> findClaimed(String id) throws IOException {
+        List<Path> found = new ArrayList<>();
+        for (Path claimed : list(CLAIMED, JOB_EXTENSION)) {
+            if (claimed.getFileName().toString().startsWith(id + "@")) {
+                found.add(claimed);
+            }
+        }
+        return found;
+    }
+
+    private List<Path> list(String folder, String extension) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path dir = root.resolve(folder);
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + extension)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static Properties read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /** Writes properties to a temporary file of the same folder and renames it in place. */
+    static void writeAtomically(Path target, Properties properties, String comment) throws IOException {
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + safeId(defaultNodeName()) + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, comment);
+        }
+        ResultWriter.moveInPlace(temp, target);
+    }
+
+    private static String stripExtension(Path file, String extension) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - extension.length());
+    }
+
+    /** Makes an id usable as a file name on any filesystem. */
+    public static String safeId(String id) {
+        return id.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /** Returns a node name unique to this JVM: "pid@hostname". */
+    public static String defaultNodeName() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+}
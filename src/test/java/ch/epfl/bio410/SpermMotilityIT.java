@@ -0,0 +1,290 @@
+package ch.epfl.bio410;
+
+import ch.epfl.bio410.tracking.MotilityClassifier;
+import ch.epfl.bio410.tracking.StreamingTracker;
+import ch.epfl.bio410.tracking.TrackingPipeline;
+import ch.epfl.bio410.tracking.VideoTriage;
+import ch.epfl.bio410.utils.ErrorReport;
+import ch.epfl.bio410.utils.ImageSource;
+import ch.epfl.bio410.utils.ResultWriter;
+import ch.epfl.bio410.utils.SpotIndex;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.utils;
+import fiji.plugin.trackmate.Model;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.filter.GaussianBlur;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Regression suite of the whole analysis, run headless by failsafe in mvn verify.
+ * A synthetic video (see SyntheticStack and src/test/resources/regression) is analysed as the plugin does,
+ * and the exported tracks are compared with the golden tracks of the scene, within the tolerances of tolerances.properties.
+ * The peak heap is checked against budgets.properties. The time of each stage is measured relative to a calibration
+ * run in the same JVM, and checked against budgets.properties only if the system property budget.enforce is true,
+ * since shared CI machines do not give stable timings.
+ */
+public class SpermMotilityIT {
+
+	/** Passes and blur of the calibration run, see calibrationMillis. */
+	private static final int CALIBRATION_PASSES = 3;
+	private static final double CALIBRATION_SIGMA = 2.0;
+
+	private static Properties scene;
+	private static Properties tolerances;
+	private static Properties budgets;
+	private static List<CSVRecord> golden;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@BeforeClass
+	public static void loadResources() throws IOException, URISyntaxException {
+		scene = properties("scene.properties");
+		tolerances = properties("tolerances.properties");
+		budgets = properties("budgets.properties");
+		golden = utils.readCsv(resource("golden_tracks.csv"), 0);
+	}
+
+	@Test
+	public void batchMatchesGolden() throws Exception {
+		checkBatch(false);
+	}
+
+	@Test
+	public void driftCorrectedFlowMatchesGolden() throws Exception {
+		File results = checkBatch(true);
+
+		// The drift of the last frame is the flow of the scene over the video
+		List<CSVRecord> drift = utils.readCsv(new File(results, "drift_synthetic.csv"), 0);
+		CSVRecord last = drift.get(drift.size() - 1);
+		double duration = Double.parseDouble(last.get("POSITION_T"));
+		double tolerance = Double.parseDouble(tolerances.getProperty("SPEED_ABSOLUTE")) * duration;
+		assertEquals("drift x", Double.parseDouble(scene.getProperty("FLOW_X")) * duration, Double.parseDouble(last.get("DRIFT_X")), tolerance);
+		assertEquals("drift y", Double.parseDouble(scene.getProperty("FLOW_Y")) * duration, Double.parseDouble(last.get("DRIFT_Y")), tolerance);
+	}
+
+	@Test
+	public void stagesWithinBudgets() throws Exception {
+		TrackingConfig config = TrackingConfig.load(resource("config.properties"));
+		ImagePlus video = SyntheticStack.build(scene, blobs(), config.detector_radius, false);
+		int frames = video.getNFrames();
+		TrackingPipeline pipeline = new TrackingPipeline(config);
+		pipeline.run(video.duplicate()); // warm up: class loading, factories and buffers of the thread
+		double unit = calibrationMillis(video);
+		Map<String, Double> measured = new HashMap<>();
+
+		long start = System.nanoTime();
+		VideoTriage.run(video, config);
+		measured.put("TRIAGE_MAX", millisSince(start) / unit);
+
+		System.gc();
+		resetPeakHeap();
+		start = System.nanoTime();
+		Model model = pipeline.run(video.duplicate());
+		measured.put("PIPELINE_MAX_PER_FRAME", millisSince(start) / frames / unit);
+		double peakHeapMb = peakHeap() / (1024.0 * 1024.0);
+		assertEquals("number of tracks", golden.size(), model.getTrackModel().nTracks(true));
+
+		start = System.nanoTime();
+		List<MotilityClassifier.TrackGrade> grades = pipeline.classify(model);
+		measured.put("CLASSIFY_MAX", millisSince(start) / unit);
+		assertEquals("number of graded tracks", golden.size(), grades.size());
+
+		File folder = temp.newFolder("export");
+		ImageSource source = new ImageSource(new File(folder, "synthetic.tif").toPath(), 0, 1, "synthetic");
+		try (ResultWriter writer = new ResultWriter(1, 1, 1)) {
+			start = System.nanoTime();
+			assertTrue("export", pipeline.export(model, grades, source, folder, writer).get());
+			measured.put("EXPORT_MAX", millisSince(start) / unit);
+		}
+
+		StreamingTracker streaming = new StreamingTracker(config, video.getCalibration().pixelWidth,
+				video.getCalibration().frameInterval, 4, 10, update -> { });
+		start = System.nanoTime();
+		for (int frame = 1; frame <= frames; frame++) {
+			streaming.push(video.getStack().getProcessor(frame));
+		}
+		List<?> liveTracks = streaming.finish();
+		measured.put("STREAMING_MAX_PER_FRAME", millisSince(start) / frames / unit);
+		assertFalse("no track found by the live tracking", liveTracks.isEmpty());
+
+		// The peak heap does not depend on the speed of the machine, it is always checked
+		IJ.log(String.format("PEAK_HEAP_MAX_MB : %.1f (budget %.1f)", peakHeapMb, budget("PEAK_HEAP_MAX_MB")));
+		assertTrue(String.format("peak heap %.1f MB, budget %.1f MB", peakHeapMb, budget("PEAK_HEAP_MAX_MB")),
+				peakHeapMb <= budget("PEAK_HEAP_MAX_MB"));
+
+		// Report all the stages before failing on the ones over budget
+		IJ.log(String.format("Calibration : %.2f ms per frame", unit));
+		List<String> overBudget = new ArrayList<>();
+		for (Map.Entry<String, Double> stage : measured.entrySet()) {
+			double budget = budget(stage.getKey());
+			IJ.log(String.format("%s : %.1f (budget %.1f)", stage.getKey(), stage.getValue(), budget));
+			if (stage.getValue() > budget) {
+				overBudget.add(String.format("%s = %.1f, budget %.1f", stage.getKey(), stage.getValue(), budget));
+			}
+		}
+		if (!overBudget.isEmpty() && Boolean.getBoolean("budget.enforce")) {
+			fail("Over budget: " + String.join("; ", overBudget));
+		}
+	}
+
+	/**
+	 * Time unit of the stage budgets: the time this JVM takes to blur one frame of the video, in ms.
+	 * The fastest of a few passes over the video is kept, as the least disturbed by the other processes of the machine.
+	 */
+	private static double calibrationMillis(ImagePlus video) {
+		GaussianBlur blur = new GaussianBlur();
+		double best = Double.MAX_VALUE;
+		for (int pass = 0; pass < CALIBRATION_PASSES; pass++) {
+			long start = System.nanoTime();
+			for (int frame = 1; frame <= video.getStackSize(); frame++) {
+				blur.blurGaussian(video.getStack().getProcessor(frame).convertToFloatProcessor(), CALIBRATION_SIGMA);
+			}
+			best = Math.min(best, millisSince(start) / video.getStackSize());
+		}
+		return best;
+	}
+
+	/**
+	 * Analyses the synthetic video with the batch of the plugin and compares the exported tracks with the golden tracks.
+	 * @param withFlow Add the flow of the scene and correct the drift.
+	 * @return The results folder.
+	 */
+	private File checkBatch(boolean withFlow) throws Exception {
+		TrackingConfig config = TrackingConfig.load(resource("config.properties"));
+		config.drift_correction = withFlow;
+		File folder = temp.newFolder(withFlow ? "flow" : "still");
+		ImagePlus video = SyntheticStack.build(scene, blobs(), config.detector_radius, withFlow);
+		assertTrue(IJ.saveAsTiff(video, new File(folder, "synthetic.tif").getPath()));
+
+		new SpermMotility().runBatch(folder.getPath(), config, false, false, false);
+
+		File results = new File(folder, "results");
+		assertFalse("images failed, see " + ErrorReport.FILE_NAME, new File(results, ErrorReport.FILE_NAME).exists());
+		Map<String, CSVRecord> tracks = byTrackId(utils.readCsv(new File(results, "tracks_synthetic.csv"), 0));
+		Map<String, CSVRecord> grades = byTrackId(utils.readCsv(new File(results, "classification_synthetic.csv"), 0));
+		assertEquals("number of tracks", golden.size(), tracks.size());
+
+		Set<String> matched = new HashSet<>();
+		try (SpotIndex index = SpotIndex.open(new File(results, "spots_synthetic.idx"))) {
+			for (CSVRecord blob : golden) {
+				String name = "blob " + blob.get("BLOB");
+				// The track of a blob is the one of the spot at its start position (the drift is 0 on the first frame)
+				List<SpotIndex.Entry> nearest = index.nearest(number(blob, "X0"), number(blob, "Y0"), 0, 0, 1);
+				assertEquals(name + " detected on the first frame", 1, nearest.size());
+				SpotIndex.Entry start = nearest.get(0);
+				assertTrue(name + " detected at its position, got " + start,
+						Math.hypot(start.x - number(blob, "X0"), start.y - number(blob, "Y0")) < Double.parseDouble(scene.getProperty("PIXEL_SIZE")) * 2);
+				String trackId = String.valueOf(start.trackId);
+				assertTrue(name + " tracked", tracks.containsKey(trackId));
+				assertTrue(name + " in its own track", matched.add(trackId));
+				compare(name, blob, tracks.get(trackId), grades.get(trackId));
+			}
+		}
+		return results;
+	}
+
+	private static void compare(String name, CSVRecord blob, CSVRecord track, CSVRecord grade) {
+		assertEquals(name + " NUMBER_SPOTS", number(blob, "NUMBER_SPOTS"), number(track, "NUMBER_SPOTS"),
+				Double.parseDouble(tolerances.getProperty("NUMBER_SPOTS")));
+		double speed = number(blob, "TRACK_MEAN_SPEED");
+		double speedTolerance = Math.max(Double.parseDouble(tolerances.getProperty("SPEED_ABSOLUTE")),
+				Double.parseDouble(tolerances.getProperty("SPEED_RELATIVE")) * speed);
+		assertEquals(name + " TRACK_MEAN_SPEED", speed, number(track, "TRACK_MEAN_SPEED"), speedTolerance);
+		if (!blob.get("LINEARITY_OF_FORWARD_PROGRESSION").isEmpty()) {
+			assertEquals(name + " LINEARITY_OF_FORWARD_PROGRESSION", number(blob, "LINEARITY_OF_FORWARD_PROGRESSION"),
+					number(track, "LINEARITY_OF_FORWARD_PROGRESSION"), Double.parseDouble(tolerances.getProperty("LINEARITY")));
+		}
+		assertNotNull(name + " graded", grade);
+		assertEquals(name + " GRADE", blob.get("GRADE"), grade.get("GRADE"));
+	}
+
+	/** Rows of a tracks or classification file by track ID, without the rows of the feature names and units. */
+	private static Map<String, CSVRecord> byTrackId(List<CSVRecord> records) {
+		Map<String, CSVRecord> byId = new HashMap<>();
+		for (CSVRecord record : records) {
+			if (utils.isNumeric(record.get("TRACK_ID"))) {
+				byId.put(record.get("TRACK_ID"), record);
+			}
+		}
+		return byId;
+	}
+
+	private static List<SyntheticStack.Blob> blobs() {
+		List<SyntheticStack.Blob> blobs = new ArrayList<>();
+		for (CSVRecord blob : golden) {
+			blobs.add(new SyntheticStack.Blob(number(blob, "X0"), number(blob, "Y0"), number(blob, "VX"), number(blob, "VY")));
+		}
+		return blobs;
+	}
+
+	private static double number(CSVRecord record, String column) {
+		return Double.parseDouble(record.get(column).trim());
+	}
+
+	/** Budget of a stage, overridden by the system property budget.KEY if set. */
+	private static double budget(String key) {
+		return Double.parseDouble(System.getProperty("budget." + key, budgets.getProperty(key)));
+	}
+
+	private static double millisSince(long startNanos) {
+		return (System.nanoTime() - startNanos) / 1e6;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/** Sum of the peak usages of the heap pools since the last reset. */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static File resource(String name) throws URISyntaxException {
+		return new File(SpermMotilityIT.class.getResource("/regression/" + name).toURI());
+	}
+
+	private static Properties properties(String name) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = SpermMotilityIT.class.getResourceAsStream("/regression/" + name)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,93 @@
+package ch.epfl.bio410;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Builds the synthetic videos of the regression suite: Gaussian spots moving in straight lines
+ * on a noisy background, with an optional global flow. The same scene always gives the same pixels.
+ */
+public class SyntheticStack {
+
+	/** A spot of the scene: start position in µm and velocity in µm/s. */
+	public static class Blob {
+		public final double x0;
+		public final double y0;
+		public final double vx;
+		public final double vy;
+
+		public Blob(double x0, double y0, double vx, double vy) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.vx = vx;
+			this.vy = vy;
+		}
+	}
+
+	private SyntheticStack() {
+	}
+
+	/**
+	 * Builds a video.
+	 * @param scene Properties of scene.properties.
+	 * @param blobs Spots of the scene.
+	 * @param spotRadius Radius of the spots in µm (the detector radius).
+	 * @param withFlow Add the flow of the scene to all the spots.
+	 * @return A calibrated 16-bit time-lapse.
+	 */
+	public static ImagePlus build(Properties scene, List<Blob> blobs, double spotRadius, boolean withFlow) {
+		int width = Integer.parseInt(scene.getProperty("WIDTH"));
+		int height = Integer.parseInt(scene.getProperty("HEIGHT"));
+		int frames = Integer.parseInt(scene.getProperty("FRAMES"));
+		double pixelSize = Double.parseDouble(scene.getProperty("PIXEL_SIZE"));
+		double frameInterval = Double.parseDouble(scene.getProperty("FRAME_INTERVAL"));
+		double background = Double.parseDouble(scene.getProperty("BACKGROUND"));
+		double noise = Double.parseDouble(scene.getProperty("NOISE"));
+		double amplitude = Double.parseDouble(scene.getProperty("AMPLITUDE"));
+		double flowX = withFlow ? Double.parseDouble(scene.getProperty("FLOW_X")) : 0;
+		double flowY = withFlow ? Double.parseDouble(scene.getProperty("FLOW_Y")) : 0;
+		Random random = new Random(Long.parseLong(scene.getProperty("SEED")));
+
+		double sigma = spotRadius / Math.sqrt(2) / pixelSize;
+		int extent = (int) Math.ceil(4 * sigma);
+		ImageStack stack = new ImageStack(width, height);
+		for (int frame = 0; frame < frames; frame++) {
+			double t = frame * frameInterval;
+			float[] pixels = new float[width * height];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (float) (background + noise * random.nextGaussian());
+			}
+			for (Blob blob : blobs) {
+				double cx = (blob.x0 + (blob.vx + flowX) * t) / pixelSize;
+				double cy = (blob.y0 + (blob.vy + flowY) * t) / pixelSize;
+				for (int y = Math.max(0, (int) cy - extent); y <= Math.min(height - 1, (int) cy + extent); y++) {
+					for (int x = Math.max(0, (int) cx - extent); x <= Math.min(width - 1, (int) cx + extent); x++) {
+						double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+						pixels[y * width + x] += (float) (amplitude * Math.exp(-r2 / (2 * sigma * sigma)));
+					}
+				}
+			}
+			short[] values = new short[pixels.length];
+			for (int i = 0; i < pixels.length; i++) {
+				values[i] = (short) Math.max(0, Math.min(65535, Math.round(pixels[i])));
+			}
+			stack.addSlice(new ShortProcessor(width, height, values, null));
+		}
+
+		ImagePlus imp = new ImagePlus("synthetic", stack);
+		imp.setDimensions(1, 1, frames);
+		Calibration calibration = imp.getCalibration();
+		calibration.pixelWidth = pixelSize;
+		calibration.pixelHeight = pixelSize;
+		calibration.setUnit("µm");
+		calibration.frameInterval = frameInterval;
+		calibration.setTimeUnit("s");
+		return imp;
+	}
+}
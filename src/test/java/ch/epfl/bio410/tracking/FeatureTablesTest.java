@@ -0,0 +1,111 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.utils.ResultWriter;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.utils;
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the spots and tracks tables are written headless, from the threads of the ResultWriter, as the export does.
+ */
+public class FeatureTablesTest {
+
+    private static final List<String> TRACK_FEATURES = Arrays.asList("TRACK_ID", "NUMBER_SPOTS", "NUMBER_GAPS",
+            "TRACK_DURATION", "TRACK_DISPLACEMENT", "TRACK_MEAN_SPEED", "TOTAL_DISTANCE_TRAVELED",
+            "MEAN_STRAIGHT_LINE_SPEED", "LINEARITY_OF_FORWARD_PROGRESSION");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void tablesWrittenHeadless() throws Exception {
+        assertTrue("run with -Djava.awt.headless=true", GraphicsEnvironment.isHeadless());
+        Model model = model(2, 3);
+        Tracking tracker = new Tracking();
+        tracker.setConfig(new TrackingConfig());
+        File folder = temp.newFolder();
+        File spots = new File(folder, "spots.csv");
+        File tracks = new File(folder, "tracks.csv");
+
+        try (ResultWriter writer = new ResultWriter(1, 1, 1)) {
+            boolean written = writer.submit("model", Arrays.asList(spots, tracks), tempFiles -> {
+                tracker.saveFeaturesToCSV(model, tempFiles.get(0), tempFiles.get(1));
+                tracker.cleanTracksCSV(tempFiles.get(1));
+            }).get();
+            assertTrue("export failed: " + writer.getFailures(), written);
+        }
+
+        // Rows of names, short names and units, then one row per spot or track
+        List<CSVRecord> spotRows = utils.readCsv(spots, 3);
+        assertEquals(6, spotRows.size());
+        assertEquals("0", spotRows.get(0).get("FRAME"));
+        assertEquals(spotRows.get(0).get("TRACK_ID"), spotRows.get(2).get("TRACK_ID"));
+        List<CSVRecord> trackRows = utils.readCsv(tracks, 3);
+        assertEquals(2, trackRows.size());
+        for (CSVRecord track : trackRows) {
+            assertEquals("3", track.get("NUMBER_SPOTS"));
+            assertEquals(2.0, Double.parseDouble(track.get("TRACK_MEAN_SPEED")), 1e-9);
+        }
+    }
+
+    /** A model of tracks moving by 1 µm per frame along x, with a frame interval of 0.5 s. */
+    private static Model model(int nTracks, int nSpots) {
+        Model model = new Model();
+        model.setPhysicalUnits("µm", "s");
+        Map<String, String> names = new HashMap<>();
+        Map<String, Dimension> dimensions = new HashMap<>();
+        Map<String, Boolean> isInt = new HashMap<>();
+        for (String feature : TRACK_FEATURES) {
+            names.put(feature, feature.toLowerCase());
+            dimensions.put(feature, Dimension.NONE);
+            isInt.put(feature, feature.equals("TRACK_ID") || feature.startsWith("NUMBER"));
+        }
+        model.getFeatureModel().declareTrackFeatures(TRACK_FEATURES, names, names, dimensions, isInt);
+
+        model.beginUpdate();
+        try {
+            for (int t = 0; t < nTracks; t++) {
+                Spot previous = null;
+                for (int frame = 0; frame < nSpots; frame++) {
+                    Spot spot = new Spot(frame, 10.0 * t, 0, 1, 100);
+                    spot.putFeature(Spot.POSITION_T, frame * 0.5);
+                    model.addSpotTo(spot, frame);
+                    if (previous != null) {
+                        model.addEdge(previous, spot, 1);
+                    }
+                    previous = spot;
+                }
+            }
+        } finally {
+            model.endUpdate();
+        }
+        for (Integer trackID : model.getTrackModel().trackIDs(true)) {
+            model.getFeatureModel().putTrackFeature(trackID, "TRACK_ID", (double) trackID);
+            model.getFeatureModel().putTrackFeature(trackID, "NUMBER_SPOTS", (double) nSpots);
+            model.getFeatureModel().putTrackFeature(trackID, "NUMBER_GAPS", 0.0);
+            model.getFeatureModel().putTrackFeature(trackID, "TRACK_DURATION", (nSpots - 1) * 0.5);
+            model.getFeatureModel().putTrackFeature(trackID, "TRACK_DISPLACEMENT", nSpots - 1.0);
+            model.getFeatureModel().putTrackFeature(trackID, "TRACK_MEAN_SPEED", 2.0);
+            model.getFeatureModel().putTrackFeature(trackID, "TOTAL_DISTANCE_TRAVELED", nSpots - 1.0);
+            model.getFeatureModel().putTrackFeature(trackID, "MEAN_STRAIGHT_LINE_SPEED", 2.0);
+            model.getFeatureModel().putTrackFeature(trackID, "LINEARITY_OF_FORWARD_PROGRESSION", 1.0);
+        }
+        return model;
+    }
+}
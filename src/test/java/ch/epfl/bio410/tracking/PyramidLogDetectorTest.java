@@ -0,0 +1,90 @@
+package ch.epfl.bio410.tracking;
+
+import ch.epfl.bio410.SyntheticStack;
+import ch.epfl.bio410.utils.TrackingConfig;
+import ch.epfl.bio410.utils.utils;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.LogDetector;
+import fiji.plugin.trackmate.detection.SpotDetector;
+import ij.ImagePlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.real.FloatType;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the positions found by the pyramid and LoG detectors with the true positions of the spots
+ * of the synthetic video of the regression suite (see SyntheticStack), where the pyramid downsamples by 2.
+ */
+public class PyramidLogDetectorTest {
+
+    /** Bounds of the localisation error, in µm: half a pixel and a pixel of the synthetic video (0.5 µm). */
+    private static final double MAX_MEAN_ERROR = 0.25;
+    private static final double MAX_ERROR = 0.5;
+    private static final int N_FRAMES = 10;
+
+    @Test
+    public void localisationErrorWithinBounds() throws Exception {
+        Properties scene = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("/regression/scene.properties")) {
+            scene.load(in);
+        }
+        TrackingConfig config = TrackingConfig.load(new File(getClass().getResource("/regression/config.properties").toURI()));
+        List<CSVRecord> golden = utils.readCsv(new File(getClass().getResource("/regression/golden_tracks.csv").toURI()), 0);
+        List<SyntheticStack.Blob> blobs = new ArrayList<>();
+        for (CSVRecord blob : golden) {
+            blobs.add(new SyntheticStack.Blob(Double.parseDouble(blob.get("X0")), Double.parseDouble(blob.get("Y0")),
+                    Double.parseDouble(blob.get("VX")), Double.parseDouble(blob.get("VY"))));
+        }
+        ImagePlus video = SyntheticStack.build(scene, blobs, config.detector_radius, false);
+        double pixelSize = video.getCalibration().pixelWidth;
+        double frameInterval = video.getCalibration().frameInterval;
+        int factor = PyramidLogDetectorFactory.downsamplingFactor(config.detector_radius, pixelSize);
+        assertTrue("the synthetic spots are large enough to downsample", factor >= 2);
+
+        List<Spot> truth = new ArrayList<>();
+        List<Spot> log = new ArrayList<>();
+        List<Spot> pyramid = new ArrayList<>();
+        double[] calibration = {pixelSize, pixelSize, 1};
+        for (int frame = 0; frame < N_FRAMES; frame++) {
+            double t = frame * frameInterval;
+            for (SyntheticStack.Blob blob : blobs) {
+                truth.add(new Spot(blob.x0 + blob.vx * t, blob.y0 + blob.vy * t, frame * 1000.0, config.detector_radius, 1));
+            }
+            Img<FloatType> img = ImageJFunctions.wrapFloat(new ImagePlus("", video.getStack().getProcessor(frame + 1).convertToFloat()));
+            log.addAll(detect(new LogDetector<>(img, img, calibration, config.detector_radius, config.detector_threshold,
+                    true, config.detector_median_filter), frame));
+            pyramid.addAll(detect(new PyramidLogDetector<>(img, img, calibration, config.detector_radius, config.detector_threshold,
+                    config.detector_median_filter, factor), frame));
+        }
+
+        check("LoG", PyramidLogDetectorFactory.localisationError(truth, log, config.detector_radius));
+        check("pyramid", PyramidLogDetectorFactory.localisationError(truth, pyramid, config.detector_radius));
+    }
+
+    private static List<Spot> detect(SpotDetector<FloatType> detector, int frame) {
+        assertTrue(detector.getErrorMessage(), detector.checkInput() && detector.process());
+        // Spots of a frame are only matched to the true spots of the same frame
+        List<Spot> spots = new ArrayList<>();
+        for (Spot spot : detector.getResult()) {
+            spots.add(new Spot(spot.getDoublePosition(0), spot.getDoublePosition(1), frame * 1000.0, spot.getFeature(Spot.RADIUS), 1));
+        }
+        return spots;
+    }
+
+    private static void check(String detector, double[] error) {
+        assertEquals(detector + " missed spots", 0, error[2], 0);
+        assertTrue(detector + " mean error " + error[0] + " µm", error[0] < MAX_MEAN_ERROR);
+        assertTrue(detector + " max error " + error[1] + " µm", error[1] < MAX_ERROR);
+    }
+}
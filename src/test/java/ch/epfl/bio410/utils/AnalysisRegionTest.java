@@ -0,0 +1,102 @@
+package ch.epfl.bio410.utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import org.junit.Test;
+
+import java.awt.*;
+import java.util.Random;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the automatic crop on noisy frames: the crop must fit the area holding the spots,
+ * whatever the noise, hot pixels and bright edges elsewhere in the frame.
+ */
+public class AnalysisRegionTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int N_FRAMES = 10;
+    /** Area holding the spots. */
+    private static final Rectangle PATCH = new Rectangle(180, 60, 60, 40);
+    /** Max distance between the sides of the crop and of the patch, in pixels. */
+    private static final int TOLERANCE = 6;
+
+    private final Random random = new Random(7);
+
+    @Test
+    public void cropFitsSignalPatch() {
+        ImagePlus imp = video(true, false);
+        Rectangle crop = AnalysisRegion.findSignalBounds(imp, 1, N_FRAMES, false);
+        assertNotNull("no signal found", crop);
+        assertClose(crop);
+    }
+
+    @Test
+    public void hotPixelsAndEdgesIgnored() {
+        ImagePlus imp = video(true, true);
+        Rectangle crop = AnalysisRegion.findSignalBounds(imp, 1, N_FRAMES, false);
+        assertNotNull("no signal found", crop);
+        assertClose(crop);
+    }
+
+    @Test
+    public void noiseOnlyHasNoSignal() {
+        ImagePlus imp = video(false, false);
+        assertNull(AnalysisRegion.findSignalBounds(imp, 1, N_FRAMES, false));
+    }
+
+    private static void assertClose(Rectangle crop) {
+        String message = "crop " + crop + ", patch " + PATCH;
+        assertTrue(message, Math.abs(crop.x - PATCH.x) <= TOLERANCE);
+        assertTrue(message, Math.abs(crop.y - PATCH.y) <= TOLERANCE);
+        assertTrue(message, Math.abs(crop.x + crop.width - PATCH.x - PATCH.width) <= TOLERANCE);
+        assertTrue(message, Math.abs(crop.y + crop.height - PATCH.y - PATCH.height) <= TOLERANCE);
+    }
+
+    /**
+     * Frames of Gaussian noise (mean 100, std 10), optionally with spots of radius 2 moving inside the patch,
+     * and with a few hot pixels and a bright column at the left edge.
+     */
+    private ImagePlus video(boolean withSpots, boolean withArtefacts) {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        double[][] spots = new double[30][];
+        for (int i = 0; i < spots.length; i++) {
+            spots[i] = new double[]{PATCH.x + 3 + random.nextDouble() * (PATCH.width - 6), PATCH.y + 3 + random.nextDouble() * (PATCH.height - 6)};
+        }
+        for (int t = 0; t < N_FRAMES; t++) {
+            float[] pixels = new float[WIDTH * HEIGHT];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (float) (100 + 10 * random.nextGaussian());
+            }
+            if (withSpots) {
+                for (double[] spot : spots) {
+                    // Spots wander inside the patch, so the projection shows their trails
+                    spot[0] = Math.max(PATCH.x + 3, Math.min(PATCH.x + PATCH.width - 4, spot[0] + 2 * random.nextGaussian()));
+                    spot[1] = Math.max(PATCH.y + 3, Math.min(PATCH.y + PATCH.height - 4, spot[1] + 2 * random.nextGaussian()));
+                    for (int y = (int) spot[1] - 3; y <= (int) spot[1] + 3; y++) {
+                        for (int x = (int) spot[0] - 3; x <= (int) spot[0] + 3; x++) {
+                            double d2 = (x - spot[0]) * (x - spot[0]) + (y - spot[1]) * (y - spot[1]);
+                            pixels[y * WIDTH + x] += (float) (150 * Math.exp(-d2 / (2 * 2 * 2)));
+                        }
+                    }
+                }
+            }
+            if (withArtefacts) {
+                pixels[5 * WIDTH + 5] = 4000;
+                pixels[(HEIGHT - 10) * WIDTH + WIDTH - 20] = 4000;
+                for (int y = 0; y < HEIGHT; y++) {
+                    pixels[y * WIDTH] = 300;
+                }
+            }
+            stack.addSlice(null, new FloatProcessor(WIDTH, HEIGHT, pixels));
+        }
+        ImagePlus imp = new ImagePlus("noisy", stack);
+        imp.setDimensions(1, 1, N_FRAMES);
+        return imp;
+    }
+}
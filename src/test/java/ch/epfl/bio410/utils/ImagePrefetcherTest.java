@@ -0,0 +1,91 @@
+package ch.epfl.bio410.utils;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the images prefetched and prepared ahead of the current one never exceed the memory budget,
+ * with sources opened as virtual stacks (as Bio-Formats does), whose size is unknown before opening.
+ */
+public class ImagePrefetcherTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 100;
+    private static final int N_FRAMES = 10;
+    /** Heap of one prepared image: a 16-bit copy of all its frames. */
+    private static final long IMAGE_BYTES = 2L * WIDTH * HEIGHT * N_FRAMES;
+    private static final int N_IMAGES = 8;
+
+    /** Heap held by the prepared images not released yet. */
+    private final AtomicLong held = new AtomicLong();
+    private final AtomicLong maxAhead = new AtomicLong();
+
+    @Test(timeout = 30000)
+    public void budgetHoldsForVirtualSources() throws Exception {
+        long budget = (long) (2.5 * IMAGE_BYTES);
+        List<ImageSource> sources = new ArrayList<>();
+        for (int i = 0; i < N_IMAGES; i++) {
+            sources.add(new VirtualSource(i));
+        }
+        try (ImagePrefetcher prefetcher = new ImagePrefetcher(sources, N_IMAGES, budget, this::copy)) {
+            for (int i = 0; i < N_IMAGES; i++) {
+                ImagePlus imp = prefetcher.take(i);
+                assertEquals("image " + i, i, imp.getStack().getProcessor(1).get(0));
+                Thread.sleep(50); // let the I/O thread prepare as far ahead as it can
+                imp.close();
+                held.addAndGet(-IMAGE_BYTES);
+                prefetcher.release(i);
+            }
+        }
+        // The current image may come on top of the budget
+        assertTrue("prefetched images held " + maxAhead.get() + " bytes, budget " + budget, maxAhead.get() <= budget + IMAGE_BYTES);
+        assertTrue("nothing was prefetched", maxAhead.get() > IMAGE_BYTES);
+    }
+
+    /** Copies a virtual image to the heap after reserving the copy, as TrackingPipeline.prepare does. */
+    private ImagePlus copy(ImagePlus imp, ImagePrefetcher.Reservation reservation) throws InterruptedException {
+        reservation.reserve(IMAGE_BYTES);
+        ImagePlus copy = new ImagePlus(imp.getTitle(), imp.getStack().duplicate());
+        maxAhead.accumulateAndGet(held.addAndGet(IMAGE_BYTES), Math::max);
+        return copy;
+    }
+
+    /** Source opened as a virtual stack, whose pixels hold the index of the source. */
+    private static class VirtualSource extends ImageSource {
+        private final int index;
+
+        VirtualSource(int index) {
+            super(Paths.get("video" + index + ".nd2"), 0, 1, "video" + index);
+            this.index = index;
+        }
+
+        @Override
+        public ImagePlus open() {
+            VirtualStack stack = new VirtualStack(WIDTH, HEIGHT, null, "") {
+                @Override
+                public ImageProcessor getProcessor(int n) {
+                    ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+                    ip.set(index);
+                    return ip;
+                }
+
+                @Override
+                public int getSize() {
+                    return N_FRAMES;
+                }
+            };
+            return new ImagePlus(getName(), stack);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ch.epfl.bio410.utils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a stack saved by ImageJ opens memory-mapped with its dimensions, calibration and pixels.
+ */
+public class MappedTiffStackTest {
+
+    private static final int WIDTH = 12;
+    private static final int HEIGHT = 8;
+    private static final int N_FRAMES = 5;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void calibrationReadFromDescription() throws Exception {
+        File file = save(0.04, 0);
+        ImagePlus imp = MappedTiffStack.open(file.toPath(), "video");
+        assertNotNull("uncompressed stack not mapped", imp);
+        assertTrue(imp.getStack() instanceof MappedTiffStack);
+        assertEquals(N_FRAMES, imp.getNFrames());
+        Calibration calibration = imp.getCalibration();
+        assertEquals(0.5, calibration.pixelWidth, 1e-9);
+        assertEquals(0.5, calibration.pixelHeight, 1e-9);
+        assertEquals("micron", calibration.getUnit());
+        assertEquals(0.04, calibration.frameInterval, 1e-9);
+        assertEquals(3000 + WIDTH + 3, imp.getStack().getProcessor(4).get(3, 1));
+    }
+
+    @Test
+    public void frameIntervalFromFrameRate() throws Exception {
+        File file = save(0, 25);
+        ImagePlus imp = MappedTiffStack.open(file.toPath(), "video");
+        assertNotNull(imp);
+        assertEquals(25, imp.getCalibration().fps, 1e-9);
+        assertEquals(0.04, imp.getCalibration().frameInterval, 1e-9);
+    }
+
+    /** Saves a 16-bit video whose pixels hold frame * 1000 + y * WIDTH + x. */
+    private File save(double frameInterval, double fps) throws Exception {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (int t = 0; t < N_FRAMES; t++) {
+            ShortProcessor ip = new ShortProcessor(WIDTH, HEIGHT);
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                ip.set(i, t * 1000 + i);
+            }
+            stack.addSlice(null, ip);
+        }
+        ImagePlus imp = new ImagePlus("video", stack);
+        imp.setDimensions(1, 1, N_FRAMES);
+        Calibration calibration = imp.getCalibration();
+        calibration.pixelWidth = 0.5;
+        calibration.pixelHeight = 0.5;
+        calibration.setUnit("micron");
+        calibration.frameInterval = frameInterval;
+        calibration.fps = fps;
+        File file = new File(temp.getRoot(), "video.tif");
+        assertTrue(IJ.saveAsTiff(imp, file.getPath()));
+        return file;
+    }
+}
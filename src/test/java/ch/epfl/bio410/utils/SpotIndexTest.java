@@ -0,0 +1,124 @@
+package ch.epfl.bio410.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the range and nearest queries of the spot index with a brute force search over the same spots,
+ * for query points inside and outside the grid.
+ */
+public class SpotIndexTest {
+
+    private static final int N_SPOTS = 2000;
+    private static final int N_FRAMES = 120;
+    /** Spots cover [0, 400] x [0, 300] µm, the queries [-150, 550] x [-150, 450] µm. */
+    private static final double WIDTH = 400;
+    private static final double HEIGHT = 300;
+    private static final double MARGIN = 150;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private List<SpotIndex.Entry> entries;
+    private File file;
+
+    @Before
+    public void writeIndex() throws IOException {
+        entries = new ArrayList<>();
+        for (int i = 0; i < N_SPOTS; i++) {
+            int frame = random.nextInt(N_FRAMES);
+            entries.add(new SpotIndex.Entry(i, i % 37, frame, random.nextDouble() * WIDTH, random.nextDouble() * HEIGHT, frame * 0.05));
+        }
+        file = temp.newFile("spots.idx");
+        // Small cells and blocks, so that the queries cross many buckets
+        SpotIndex.write(entries, file, 30, 16);
+    }
+
+    @Test
+    public void rangeMatchesBruteForce() throws IOException {
+        try (SpotIndex index = SpotIndex.open(file)) {
+            for (int q = 0; q < 200; q++) {
+                double x0 = randomX();
+                double y0 = randomY();
+                double x1 = x0 + random.nextDouble() * 200;
+                double y1 = y0 + random.nextDouble() * 200;
+                int first = random.nextInt(N_FRAMES + 20) - 10;
+                int last = first + random.nextInt(40);
+
+                List<Integer> expected = new ArrayList<>();
+                for (SpotIndex.Entry e : entries) {
+                    if (e.frame >= first && e.frame <= last && e.x >= x0 && e.x <= x1 && e.y >= y0 && e.y <= y1) {
+                        expected.add(e.spotId);
+                    }
+                }
+                List<Integer> found = new ArrayList<>();
+                for (SpotIndex.Entry e : index.range(x0, y0, x1, y1, first, last)) {
+                    found.add(e.spotId);
+                }
+                expected.sort(null);
+                found.sort(null);
+                assertEquals("range " + x0 + "," + y0 + " - " + x1 + "," + y1 + ", frames " + first + "-" + last, expected, found);
+            }
+        }
+    }
+
+    @Test
+    public void nearestMatchesBruteForce() throws IOException {
+        try (SpotIndex index = SpotIndex.open(file)) {
+            for (int q = 0; q < 200; q++) {
+                double x = randomX();
+                double y = randomY();
+                int first = random.nextInt(N_FRAMES);
+                int last = first + random.nextInt(30);
+                int k = 1 + random.nextInt(12);
+
+                List<Double> expected = new ArrayList<>();
+                for (SpotIndex.Entry e : entries) {
+                    if (e.frame >= first && e.frame <= last) {
+                        expected.add(Math.hypot(e.x - x, e.y - y));
+                    }
+                }
+                expected.sort(Comparator.naturalOrder());
+                expected = expected.subList(0, Math.min(k, expected.size()));
+
+                List<SpotIndex.Entry> found = index.nearest(x, y, first, last, k);
+                assertEquals("number of spots near " + x + "," + y, expected.size(), found.size());
+                for (int i = 0; i < found.size(); i++) {
+                    SpotIndex.Entry e = found.get(i);
+                    assertTrue(e.frame >= first && e.frame <= last);
+                    assertEquals("distance of neighbour " + i + " of " + x + "," + y, expected.get(i), Math.hypot(e.x - x, e.y - y), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nearestWithoutNeighboursIsEmpty() throws IOException {
+        try (SpotIndex index = SpotIndex.open(file)) {
+            assertTrue(index.nearest(100, 100, 0, N_FRAMES, 0).isEmpty());
+            assertTrue(index.nearest(100, 100, 0, N_FRAMES, -3).isEmpty());
+            assertTrue(index.nearest(-500, 900, N_FRAMES + 10, N_FRAMES + 20, 5).isEmpty());
+        }
+    }
+
+    private double randomX() {
+        return -MARGIN + random.nextDouble() * (WIDTH + 2 * MARGIN);
+    }
+
+    private double randomY() {
+        return -MARGIN + random.nextDouble() * (HEIGHT + 2 * MARGIN);
+    }
+}
@@ -0,0 +1,146 @@
+package ch.epfl.bio410.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a config saved in both formats loads back unchanged, which parameters change its fingerprint,
+ * and that invalid parameters are rejected.
+ */
+public class TrackingConfigTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void roundTripInBothFormats() throws Exception {
+        TrackingConfig config = customConfig();
+        for (String name : new String[]{"config.properties", "config.json"}) {
+            File file = new File(temp.getRoot(), name);
+            config.save(file);
+            TrackingConfig loaded = TrackingConfig.load(file);
+            assertSameParameters(name, config, loaded);
+            assertEquals(name, config.fingerprint(), loaded.fingerprint());
+            assertEquals(name, file.getAbsolutePath(), loaded.configPath);
+        }
+    }
+
+    @Test
+    public void fingerprintIgnoresBatchParameters() {
+        TrackingConfig config = customConfig();
+        String fingerprint = config.fingerprint();
+
+        TrackingConfig batch = config.copy();
+        batch.input_patterns = "*.nd2";
+        batch.input_recursive = !config.input_recursive;
+        batch.prefetch_depth = config.prefetch_depth + 1;
+        batch.prefetch_memory_mb = config.prefetch_memory_mb + 100;
+        batch.writer_threads = config.writer_threads + 1;
+        batch.writer_queue_size = config.writer_queue_size + 1;
+        batch.writer_max_attempts = config.writer_max_attempts + 1;
+        batch.image_timeout = config.image_timeout + 60;
+        batch.configName = "other.properties";
+        assertEquals("batch parameter changed the fingerprint", fingerprint, batch.fingerprint());
+
+        TrackingConfig tracking = config.copy();
+        tracking.tracker_linking_max_distance += 0.1;
+        assertNotEquals("tracking parameter did not change the fingerprint", fingerprint, tracking.fingerprint());
+        TrackingConfig detection = config.copy();
+        detection.detector_pyramid = !config.detector_pyramid;
+        assertNotEquals("detection parameter did not change the fingerprint", fingerprint, detection.fingerprint());
+    }
+
+    @Test
+    public void invalidParametersRejected() {
+        new TrackingConfig().validate();
+        assertRejected("DETECTOR_RADIUS", c -> c.detector_radius = 0);
+        assertRejected("DETECTOR_THRESHOLD", c -> c.detector_threshold = Double.NaN);
+        assertRejected("TRACKER_LINKING_MAX_DISTANCE", c -> c.tracker_linking_max_distance = -1);
+        assertRejected("TRACKER_MAX_FRAME_GAP", c -> c.tracker_max_frame_gap = -1);
+        assertRejected("VAP_WINDOW", c -> c.vap_window = 0);
+        assertRejected("FIRST_FRAME", c -> c.first_frame = 0);
+        assertRejected("ROI_WIDTH", c -> c.roi_width = -5);
+        assertRejected("WRITER_THREADS", c -> c.writer_threads = 0);
+        assertRejected("IMAGE_TIMEOUT", c -> c.image_timeout = -1);
+    }
+
+    @Test
+    public void invalidFileRejected() throws Exception {
+        File file = new File(temp.getRoot(), "invalid.properties");
+        TrackingConfig config = new TrackingConfig();
+        config.max_frames = -3;
+        config.save(file);
+        try {
+            TrackingConfig.load(file);
+            fail("invalid config loaded");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("MAX_FRAMES"));
+        }
+    }
+
+    private interface Change {
+        void apply(TrackingConfig config);
+    }
+
+    private static void assertRejected(String key, Change change) {
+        TrackingConfig config = new TrackingConfig();
+        change.apply(config);
+        try {
+            config.validate();
+            fail(key + " out of range accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(key));
+        }
+    }
+
+    /** Returns a valid config where most parameters differ from the defaults. */
+    private static TrackingConfig customConfig() {
+        TrackingConfig config = new TrackingConfig();
+        config.subtraction_radius = 12;
+        config.detector_radius = 0.45;
+        config.detector_threshold = 17.5;
+        config.detector_median_filter = !config.detector_median_filter;
+        config.detector_pyramid = true;
+        config.tracker_linking_max_distance = 2.25;
+        config.tracker_max_frame_gap = 2;
+        config.drift_correction = true;
+        config.track_duration_min = 1.5;
+        config.vap_window = 7;
+        config.roi_x = 10;
+        config.roi_y = 20;
+        config.roi_width = 300;
+        config.roi_height = 200;
+        config.roi_path = "rois/chamber 1.roi";
+        config.first_frame = 3;
+        config.max_frames = 250;
+        config.triage_enabled = true;
+        config.triage_overcrowded_config = "crowded.properties";
+        config.input_patterns = "*.tif,*.czi";
+        config.prefetch_depth = 2;
+        config.image_timeout = 900;
+        config.validate();
+        return config;
+    }
+
+    /** Compares all the saved parameters, i.e. all the instance fields except the transient name and path. */
+    private static void assertSameParameters(String message, TrackingConfig expected, TrackingConfig actual) throws IllegalAccessException {
+        for (Field field : TrackingConfig.class.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                continue;
+            }
+            field.setAccessible(true);
+            assertEquals(message + ": " + field.getName(), field.get(expected), field.get(actual));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ch.epfl.bio410.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the claims and leases of the work queue on a temporary folder, as two nodes sharing it would use them.
+ */
+public class WorkQueueTest {
+
+    private static final long LEASE_MILLIS = 60000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private WorkQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new WorkQueue(temp.getRoot().toPath());
+        queue.init();
+        Properties job = new Properties();
+        job.setProperty("PATH", "/data/video1.tif");
+        assertTrue(queue.enqueue("video1", job));
+    }
+
+    @Test
+    public void itemClaimedOnce() throws Exception {
+        WorkQueue.Claim first = queue.claim("nodeA");
+        assertNotNull(first);
+        assertEquals("video1", first.id);
+        assertEquals("/data/video1.tif", first.job.getProperty("PATH"));
+        assertNull("item claimed twice", queue.claim("nodeB"));
+        assertFalse("claimed item queued again", queue.enqueue("video1", new Properties()));
+        assertEquals(1, queue.count(WorkQueue.CLAIMED));
+        assertEquals(0, queue.count(WorkQueue.TODO));
+    }
+
+    @Test
+    public void expiredLeaseRequeued() throws Exception {
+        WorkQueue.Claim first = queue.claim("nodeA");
+        assertEquals("live lease requeued", 0, queue.requeueExpired(LEASE_MILLIS));
+        expire(first);
+        assertEquals(1, queue.requeueExpired(LEASE_MILLIS));
+        assertEquals(0, queue.count(WorkQueue.CLAIMED));
+        assertEquals(1, queue.count(WorkQueue.TODO));
+
+        WorkQueue.Claim second = queue.claim("nodeB");
+        assertNotNull("requeued item not claimable", second);
+        assertEquals(first.id, second.id);
+    }
+
+    @Test
+    public void renewFailsOnceLeaseLost() throws Exception {
+        WorkQueue.Claim first = queue.claim("nodeA");
+        assertTrue(queue.renewLease(first.file));
+        expire(first);
+        queue.requeueExpired(LEASE_MILLIS);
+        assertFalse("lease renewed after the item was requeued", queue.renewLease(first.file));
+
+        WorkQueue.Claim second = queue.claim("nodeB");
+        assertNotNull(second);
+        assertFalse("lease renewed after another node claimed the item", queue.renewLease(first.file));
+        assertTrue(queue.renewLease(second.file));
+        assertEquals(1, queue.count(WorkQueue.CLAIMED));
+    }
+
+    /** Makes the lease of a claim look older than the lease duration, as if its node had stopped renewing it. */
+    private static void expire(WorkQueue.Claim claim) throws Exception {
+        Files.setLastModifiedTime(claim.file, FileTime.fromMillis(System.currentTimeMillis() - 2 * LEASE_MILLIS));
+    }
+}